@@ -17,15 +17,24 @@
 
 package Correlation;
 
+import Methods.KnniLD;
+import Utils.MappedGenotypes;
+import Utils.PackedGenotypes;
 import Utils.Progress;
 import Utils.SilentProgress;
 import Utils.TextProgress;
-import Utils.TopQueue;
+import Utils.TileScheduler;
+import Utils.TopHeap;
+import Utils.TopHeapFile;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -76,10 +85,93 @@ public abstract class Correlation
      * position of the array, samples by the second.  For example data[1][2] would be
      * SNP 1 and sample 2.
      * @param n number of top hits to return per site
-     * @return A map from site to ordered list of sites most in LD
+     * @return The sites most in LD with each site
      */
-    public Map<Integer,List<Integer>> topn(byte[][] data, int n)
+    public LDIndex topn(byte[][] data, int n)
     {
+        return topn(new PackedGenotypes(data), n);
+    }
+    
+    /**
+     * Calculates all-against-all LD and returns the top n sites most in LD with
+     * each site.
+     * @param data The data to calculate LD for, packed so that each row is a SNP.
+     * @param n number of top hits to return per site
+     * @return The sites most in LD with each site
+     */
+    public LDIndex topn(PackedGenotypes data, int n)
+    {
+        Bound bound = PRUNE ? bound(data) : null;
+        if (bound == null)
+        {
+            return topn(data, n, new Window(data.rows(), data.rows()));
+        }
+        
+        // Order SNPs by the bound's key (normally allele frequency) so SNPs
+        // likely to be in high LD are compared early, which raises the
+        // pruning thresholds sooner.  Doesn't change the results.
+        Integer[] sorted = new Integer[data.rows()];
+        final double[] key = new double[data.rows()];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = i;
+            key[i] = bound.key(i);
+        }
+        Arrays.sort(sorted, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer i, Integer j)
+            {
+                return Double.compare(key[i], key[j]);
+            }
+        });
+        int[] order = new int[sorted.length];
+        for (int i = 0; i < order.length; i++)
+        {
+            order[i] = sorted[i];
+        }
+        return topn(data, n, new Window(order), bound);
+    }
+    
+    /**
+     * Calculates LD between SNPs that are within a window of each other and
+     * returns the top n sites most in LD with each site.  Sites with fewer
+     * than n other sites in their window will have shorter lists returned.
+     * @param data The data to calculate LD for, packed so that each row is a SNP.
+     * @param n number of top hits to return per site
+     * @param window The window that restricts which pairs of SNPs are compared
+     * @return The sites most in LD with each site
+     */
+    public LDIndex topn(PackedGenotypes data, int n, Window window)
+    {
+        return topn(data, n, window, PRUNE ? bound(data) : null);
+    }
+    
+    /**
+     * Calculates all-against-all LD and returns the top n sites most in LD with
+     * each site, without needing all the data in memory.  SNPs are split into
+     * blocks which are read from the file as needed, so only two blocks of
+     * genotypes are in memory at once.  The top n heaps for blocks not being
+     * worked on are kept in a checkpoint file.  If the checkpoint file is left
+     * over from an interrupted run with the same data and parameters then the
+     * calculation carries on from where that run got to.  Results are the same
+     * as for topn with the data in memory.
+     * @param data The data to calculate LD for, with one SNP per row
+     * @param n number of top hits to return per site
+     * @param checkpoint The checkpoint file
+     * @return The sites most in LD with each site
+     * @throws IOException If there is a problem reading the data or with the
+     * checkpoint file
+     */
+    public LDIndex topn(MappedGenotypes data, int n, File checkpoint) throws IOException
+    {
+        int rows = data.rows();
+        long perRow = data.rowBytes() + TopHeap.bytes(n);
+        int block = (int) Math.max(1, Math.min(rows, Math.min(BLOCK_MEMORY / perRow,
+                Integer.MAX_VALUE / perRow)));
+        int blocks = (rows + block - 1) / block;
+        int tile = TileScheduler.tileSize(data.rowBytes());
+        
         Progress progress;
         if (SILENT)
         {
@@ -87,36 +179,255 @@ public abstract class Correlation
         }
         else
         {
-            long num = (long) data.length * ((long) data.length - 1) / 2;
-            progress = new TextProgress(num);
+            progress = new TextProgress((long) rows * (rows - 1) / 2);
         }
-        Map<Integer,TopQueue<Integer,Double>> work = new HashMap<>();
-        for (int i = 0; i < data.length; i++)
+        
+        // The checkpoint is only reused if it was calculated from the same
+        // genotypes with the same LD measure
+        long tag = 31 * data.hash() + getClass().getName().hashCode();
+        LDIndex result;
+        try (TopHeapFile heaps = new TopHeapFile(checkpoint, rows, n, block, tag))
+        {
+            // Pass i compares block i with itself and every later block.  After
+            // it block i is final and later blocks have been updated.
+            for (int bi = 0; bi < heaps.completed(); bi++)
+            {
+                int size = Math.min(block, rows - bi * block);
+                done(progress, (long) size * (size - 1) / 2 + (long) size * (rows - (bi * block + size)));
+            }
+            for (int bi = heaps.completed(); bi < blocks; bi++)
+            {
+                int is = bi * block;
+                int ie = Math.min(is + block, rows);
+                PackedGenotypes a = data.block(is, ie);
+                TopHeap[] ha = heaps.read(bi, bi);
+                
+                new TileScheduler(a.rows(), tile).run(
+                        new Block(a, new Window(a.rows(), a.rows()), ha, ids(is, ie, 0, 0), n,
+                                PRUNE ? bound(a) : null), progress, KnniLD.POOL);
+                
+                for (int bj = bi + 1; bj < blocks; bj++)
+                {
+                    int js = bj * block;
+                    int je = Math.min(js + block, rows);
+                    PackedGenotypes ab = PackedGenotypes.join(a, data.block(js, je));
+                    TopHeap[] hb = heaps.read(bj, bi);
+                    TopHeap[] hab = Arrays.copyOf(ha, ab.rows());
+                    System.arraycopy(hb, 0, hab, ha.length, hb.length);
+                    
+                    TileScheduler.rectangle(ie - is, je - js, tile).run(
+                            new Block(ab, new Window(ab.rows(), ab.rows()), hab, ids(is, ie, js, je), n,
+                                    PRUNE ? bound(ab) : null), progress, KnniLD.POOL);
+                    heaps.write(bj, bi + 1, hb);
+                }
+                heaps.write(bi, bi + 1, ha);
+                heaps.setCompleted(bi + 1);
+            }
+            
+            // Build the index straight from the checkpoint a block at a time
+            // so only one block of heaps is in memory.  The sizes of the heaps
+            // are read first so the neighbours are only held once, in arrays
+            // of exactly the right size.
+            int[] offsets = new int[rows + 1];
+            long total = 0;
+            for (int bi = 0; bi < blocks; bi++)
+            {
+                int[] sizes = heaps.sizes(bi, bi + 1);
+                for (int i = 0; i < sizes.length; i++)
+                {
+                    total += sizes[i];
+                    if (total > MAX_NEIGHBOURS)
+                    {
+                        throw new IOException("Too many neighbours for an LD index: more than "
+                                + MAX_NEIGHBOURS);
+                    }
+                    offsets[bi * block + i + 1] = (int) total;
+                }
+            }
+            int[] ids = new int[(int) total];
+            float[] scores = new float[(int) total];
+            for (int bi = 0; bi < blocks; bi++)
+            {
+                TopHeap[] h = heaps.read(bi, bi + 1);
+                for (int i = 0; i < h.length; i++)
+                {
+                    int snp = bi * block + i;
+                    System.arraycopy(h[i].getIds(), 0, ids, offsets[snp], h[i].size());
+                    System.arraycopy(h[i].getScores(), 0, scores, offsets[snp], h[i].size());
+                }
+            }
+            result = new LDIndex(offsets, ids, scores);
+        }
+        return result;
+    }
+    
+    /**
+     * Approximately calculates the top n sites most in LD with each site.  LD
+     * is first calculated on a random subset of samples to find candidate
+     * sites for each site and then exact LD is only calculated between each
+     * site and its candidates.  Use recall to measure how close the result is
+     * to that of topn.
+     * @param data The data to calculate LD for, packed so that each row is a SNP.
+     * @param n number of top hits to return per site
+     * @param samples The number of samples to use when finding candidates
+     * @param candidates The number of candidates to find per site
+     * @return The sites most in LD with each site
+     */
+    public LDIndex topnApprox(PackedGenotypes data, int n, int samples, int candidates)
+    {
+        return refine(data, n, topn(data.subset(sampleSubset(data.columns(), samples)), candidates));
+    }
+    
+    /**
+     * Approximately calculates the top n sites most in LD with each site,
+     * only comparing SNPs that are within a window of each other.  Works as
+     * topnApprox without a window.
+     * @param data The data to calculate LD for, packed so that each row is a SNP.
+     * @param n number of top hits to return per site
+     * @param window The window that restricts which pairs of SNPs are compared
+     * @param samples The number of samples to use when finding candidates
+     * @param candidates The number of candidates to find per site
+     * @return The sites most in LD with each site
+     */
+    public LDIndex topnApprox(PackedGenotypes data, int n, Window window,
+            int samples, int candidates)
+    {
+        return refine(data, n, topn(data.subset(sampleSubset(data.columns(), samples)), candidates, window));
+    }
+    
+    /**
+     * Calculates the proportion of the sites in an exact top n result that
+     * are also in an approximate result.
+     * @param exact The exact result (from topn)
+     * @param approx The approximate result (from topnApprox)
+     * @return The recall of the approximate result
+     */
+    public static double recall(LDIndex exact, LDIndex approx)
+    {
+        long found = 0;
+        long total = 0;
+        for (int snp = 0; snp < exact.size(); snp++)
+        {
+            Set<Integer> a = new HashSet<>(approx.getList(snp));
+            for (int i = 0; i < exact.count(snp); i++)
+            {
+                if (a.contains(exact.neighbour(snp, i)))
+                {
+                    found++;
+                }
+                total++;
+            }
+        }
+        return (double) found / (double) total;
+    }
+    
+    // The ids of two ranges of SNPs, one after the other
+    private static int[] ids(int start1, int end1, int start2, int end2)
+    {
+        int[] ids = new int[(end1 - start1) + (end2 - start2)];
+        int p = 0;
+        for (int i = start1; i < end1; i++)
+        {
+            ids[p++] = i;
+        }
+        for (int i = start2; i < end2; i++)
+        {
+            ids[p++] = i;
+        }
+        return ids;
+    }
+    
+    // Progress.done only takes an int
+    private static void done(Progress progress, long number)
+    {
+        while (number > Integer.MAX_VALUE)
+        {
+            progress.done(Integer.MAX_VALUE);
+            number -= Integer.MAX_VALUE;
+        }
+        progress.done((int) number);
+    }
+    
+    private static int[] sampleSubset(int number, int samples)
+    {
+        // Partial Fisher-Yates shuffle, kept in sample order afterwards
+        int[] all = new int[number];
+        for (int i = 0; i < number; i++)
+        {
+            all[i] = i;
+        }
+        Random r = new Random();
+        int size = Math.min(samples, number);
+        for (int i = 0; i < size; i++)
+        {
+            int j = i + r.nextInt(number - i);
+            int t = all[i];
+            all[i] = all[j];
+            all[j] = t;
+        }
+        int[] subset = Arrays.copyOf(all, size);
+        Arrays.sort(subset);
+        return subset;
+    }
+    
+    // Calculates exact LD between each site and its candidates, keeping the
+    // top n for each.
+    private LDIndex refine(PackedGenotypes data, int n, LDIndex candidates)
+    {
+        Progress progress;
+        if (SILENT)
+        {
+            progress = new SilentProgress();
+        }
+        else
         {
-            work.put(i,new TopQueue<Integer,Double>(n,true));
+            progress = new TextProgress(candidates.total());
         }
-        ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         
-        List<Single> parts = new ArrayList<>();
-        for (int i = 0; i < data.length; i++)
+        TopHeap[] work = new TopHeap[data.rows()];
+        int nt = Runtime.getRuntime().availableProcessors();
+        ExecutorService es = Executors.newFixedThreadPool(nt);
+        List<Refine> parts = new ArrayList<>();
+        int step = Math.max(1, (data.rows() + nt * 8 - 1) / (nt * 8));
+        for (int start = 0; start < data.rows(); start += step)
         {
-            parts.add(new Single(data,work,i,progress));
+            parts.add(new Refine(data, candidates, work, n, start, Math.min(start + step, data.rows()), progress));
         }
         try
         {
             es.invokeAll(parts);
-            es.shutdown();
         }
         catch (InterruptedException ex)
         {
-            //NEED TO DEAL WITH THIS!
+            // We shouldn't really get here so no nice way to deal with it, hence throw error and crash
+            throw new Error(ex);
         }
-        Map<Integer,List<Integer>> result = new HashMap<>();
-        for (Entry<Integer,TopQueue<Integer,Double>> e: work.entrySet())
+        es.shutdown();
+        
+        return new LDIndex(work);
+    }
+    
+    private LDIndex topn(PackedGenotypes data, int n, Window window, Bound bound)
+    {
+        Progress progress;
+        if (SILENT)
         {
-            result.put(e.getKey(),e.getValue().getList());
+            progress = new SilentProgress();
         }
-        return result;
+        else
+        {
+            progress = new TextProgress(window.pairs());
+        }
+        TopHeap[] work = new TopHeap[data.rows()];
+        for (int i = 0; i < data.rows(); i++)
+        {
+            work[i] = new TopHeap(n);
+        }
+        TileScheduler scheduler = new TileScheduler(window.size(), window.getEnds(),
+                TileScheduler.tileSize((long) data.row(0).length * 8));
+        scheduler.run(new Block(data, window, work, null, n, bound), progress, KnniLD.POOL);
+        
+        return new LDIndex(work);
     }
     
     /**
@@ -127,33 +438,389 @@ public abstract class Correlation
      */
     public abstract double calculate(byte[] d1, byte[] d2);
     
-    private class Single implements Callable<Void>
+    /**
+     * Calculates LD between two SNPs stored in packed form
+     * @param data The packed data, with one SNP per row
+     * @param i The row of SNP 1
+     * @param j The row of SNP 2
+     * @return LD between the two SNPs
+     */
+    public abstract double calculate(PackedGenotypes data, int i, int j);
+    
+    /**
+     * Calculates LD between two SNPs stored in packed form unless it is
+     * certain to be less than a limit, in which case the calculation may be
+     * abandoned early.  Used to skip pairs that can't make it into the top n.
+     * Also takes scratch space so calculations don't allocate for every
+     * pair.  The default always calculates LD and doesn't use the scratch
+     * space.
+     * @param data The packed data, with one SNP per row
+     * @param i The row of SNP 1
+     * @param j The row of SNP 2
+     * @param limit The limit
+     * @param scratch Scratch space from scratch.  Each thread has its own.
+     * @return LD between the two SNPs, or a value less than limit if LD is
+     * less than limit
+     */
+    protected double calculate(PackedGenotypes data, int i, int j, double limit, Scratch scratch)
+    {
+        return calculate(data, i, j);
+    }
+    
+    /**
+     * Creates scratch space for calculate to reuse from one pair of SNPs to
+     * the next
+     * @return The scratch space
+     */
+    protected Scratch scratch()
+    {
+        return new Scratch();
+    }
+    
+    /**
+     * Returns an upper bound on the LD between pairs of SNPs that can be
+     * calculated from per-SNP summaries, without looking at the genotypes of
+     * the pair.  Used to skip pairs, and whole bands of SNPs, that can't make
+     * it into the top n.  The bound must hold however missing genotypes fall.
+     * The default is to have no bound.
+     * @param data The packed data, with one SNP per row
+     * @return The bound, or null if there is none
+     */
+    protected Bound bound(PackedGenotypes data)
+    {
+        return null;
+    }
+    
+    /**
+     * An upper bound on LD between pairs of SNPs.
+     */
+    protected interface Bound
+    {
+        /**
+         * Returns the maximum possible LD between two SNPs.  Must never be
+         * less than the value calculate would return for the pair.
+         * @param i The row of SNP 1
+         * @param j The row of SNP 2
+         * @return The maximum possible LD
+         */
+        public double maximum(int i, int j);
+        
+        /**
+         * Summarises a band of SNPs so LD between a SNP and every SNP in the
+         * band can be bounded at once
+         * @param snps Array containing the rows of the SNPs in the band
+         * @param start Position in snps of the first SNP in the band
+         * @param end Position in snps after the last SNP in the band
+         * @return The band
+         */
+        public Band band(int[] snps, int start, int end);
+        
+        /**
+         * Returns a value used to order SNPs so that SNPs likely to be in high
+         * LD are near each other in the order.  When SNPs are ordered by key
+         * each band covers a narrow range of keys, so its bound is close to
+         * the bound for the individual pairs.
+         * @param i The row of the SNP
+         * @return The key
+         */
+        public double key(int i);
+    }
+    
+    /**
+     * An upper bound on LD between a SNP and every SNP in a band.
+     */
+    protected interface Band
+    {
+        /**
+         * Returns the maximum possible LD between a SNP and any SNP in the
+         * band.  Must never be less than the value maximum would return for
+         * any of the pairs.
+         * @param i The row of the SNP
+         * @return The maximum possible LD
+         */
+        public double maximum(int i);
+    }
+    
+    /**
+     * Counts the number of samples with each combination of genotypes at two
+     * packed SNPs.  Samples missing at either SNP are not counted.
+     * @param data The packed data, with one SNP per row
+     * @param i The row of SNP 1
+     * @param j The row of SNP 2
+     * @return Table of counts indexed by the genotype at SNP 1 and then SNP 2
+     */
+    protected static int[][] counts(PackedGenotypes data, int i, int j)
+    {
+        return counts(data, i, j, new int[3][3]);
+    }
+    
+    /**
+     * Counts the number of samples with each combination of genotypes at two
+     * packed SNPs into an existing table.  Samples missing at either SNP are
+     * not counted.
+     * @param data The packed data, with one SNP per row
+     * @param i The row of SNP 1
+     * @param j The row of SNP 2
+     * @param counts A 3 x 3 table, which is overwritten
+     * @return counts, indexed by the genotype at SNP 1 and then SNP 2
+     */
+    protected static int[][] counts(PackedGenotypes data, int i, int j, int[][] counts)
     {
-        public Single(byte[][] data, Map<Integer,TopQueue<Integer,Double>> work, int i, Progress progress)
+        long[] a = data.row(i);
+        long[] b = data.row(j);
+        int c00 = 0; int c01 = 0; int c02 = 0;
+        int c10 = 0; int c11 = 0; int c12 = 0;
+        int c20 = 0; int c21 = 0; int c22 = 0;
+        for (int w = 0; w < a.length; w += 3)
+        {
+            // Only count samples known at both SNPs
+            long known = a[w + PackedGenotypes.KNOWN] & b[w + PackedGenotypes.KNOWN];
+            long a1 = a[w + PackedGenotypes.ONE] & known;
+            long a2 = a[w + PackedGenotypes.TWO] & known;
+            long a0 = known & ~(a1 | a2);
+            long b1 = b[w + PackedGenotypes.ONE] & known;
+            long b2 = b[w + PackedGenotypes.TWO] & known;
+            long b0 = known & ~(b1 | b2);
+            c00 += Long.bitCount(a0 & b0);
+            c01 += Long.bitCount(a0 & b1);
+            c02 += Long.bitCount(a0 & b2);
+            c10 += Long.bitCount(a1 & b0);
+            c11 += Long.bitCount(a1 & b1);
+            c12 += Long.bitCount(a1 & b2);
+            c20 += Long.bitCount(a2 & b0);
+            c21 += Long.bitCount(a2 & b1);
+            c22 += Long.bitCount(a2 & b2);
+        }
+        counts[0][0] = c00; counts[0][1] = c01; counts[0][2] = c02;
+        counts[1][0] = c10; counts[1][1] = c11; counts[1][2] = c12;
+        counts[2][0] = c20; counts[2][1] = c21; counts[2][2] = c22;
+        return counts;
+    }
+    
+    /**
+     * Space that a calculation can reuse from one pair of SNPs to the next
+     * rather than allocating it for every pair.  Calculations that need more
+     * can extend this and override scratch.
+     */
+    protected static class Scratch
+    {
+        /**
+         * A 3 x 3 table of counts
+         */
+        public final int[][] counts = new int[3][3];
+    }
+    
+    // Compares SNPs in a block of rows against SNPs in a block of columns.
+    // Results are collected in heaps local to the block and only merged into
+    // the shared heaps once the block is finished so threads rarely contend.
+    private class Block implements TileScheduler.Tile
+    {
+        // ids gives the SNP id stored in the heaps for each row of data, or
+        // is null if rows are the ids.  work may already hold entries.
+        public Block(PackedGenotypes data, Window window, TopHeap[] work, int[] ids, int n, Bound bound)
         {
             this.data = data;
+            this.window = window;
             this.work = work;
-            this.i = i;
+            this.ids = ids;
+            this.n = n;
+            this.bound = bound;
+            floor = new float[work.length];
+            for (int i = 0; i < work.length; i++)
+            {
+                floor[i] = work[i].getMinimum();
+                if (!work[i].isFull())
+                {
+                    floor[i] = Float.NEGATIVE_INFINITY;
+                }
+            }
+        }
+        
+        @Override
+        public int compute(int rstart, int rend, int cstart, int cend)
+        {
+            int[] order = window.getOrder();
+            TopHeap[] rows = new TopHeap[rend - rstart];
+            for (int i = 0; i < rows.length; i++)
+            {
+                rows[i] = new TopHeap(n);
+            }
+            // On the diagonal the rows and columns are the same SNPs
+            TopHeap[] cols;
+            if (cstart == rstart)
+            {
+                cols = rows;
+            }
+            else
+            {
+                cols = new TopHeap[cend - cstart];
+                for (int j = 0; j < cols.length; j++)
+                {
+                    cols[j] = new TopHeap(n);
+                }
+            }
+            
+            // The columns are a band of SNPs.  The lowest threshold of any
+            // of them is taken from the merged heaps only, which is lower
+            // than their actual thresholds so safe to skip against.
+            Band band = null;
+            float ct = Float.POSITIVE_INFINITY;
+            if (bound != null)
+            {
+                band = bound.band(order, cstart, cend);
+                for (int j = cstart; j < cend; j++)
+                {
+                    ct = Math.min(ct, floor[order[j]]);
+                }
+            }
+            
+            Scratch scratch = scratch();
+            int done = 0;
+            for (int i = rstart; i < rend; i++)
+            {
+                int a = order[i];
+                TopHeap ra = rows[i - rstart];
+                int start = Math.max(i + 1, cstart);
+                int end = Math.min(window.getEnd(i), cend);
+                // Skip every pair in the row if none of the band can be in
+                // high enough LD with this SNP to get into the top n of
+                // either.  LD is never negative so there's nothing to check
+                // unless the threshold is above zero.  The margin covers any
+                // rounding difference between the bound and the calculation.
+                if ((band != null) && (start < end))
+                {
+                    float t = Math.min(threshold(ra, a), ct);
+                    if ((t > 0.0f) && ((float) (band.maximum(a) * MARGIN) < t))
+                    {
+                        done += end - start;
+                        continue;
+                    }
+                }
+                for (int j = start; j < end; j++)
+                {
+                    int b = order[j];
+                    TopHeap cb = cols[j - cstart];
+                    done++;
+                    // Always calculate with the lower row first, as when SNPs
+                    // are in their original order, since calculations aren't
+                    // always exactly symmetric
+                    int lo = Math.min(a, b);
+                    int hi = Math.max(a, b);
+                    // Otherwise check each pair, first against the bound and
+                    // then while calculating.  Pairs that can't get into
+                    // either top n are skipped.
+                    float t = (bound == null) ? 0.0f : Math.min(threshold(ra, a), threshold(cb, b));
+                    if ((t > 0.0f) && ((float) (bound.maximum(a, b) * MARGIN) < t))
+                    {
+                        continue;
+                    }
+                    float v = (float) calculate(data, lo, hi, t, scratch);
+                    if (v < t)
+                    {
+                        continue;
+                    }
+                    if (ids == null)
+                    {
+                        ra.add(b, v);
+                        cb.add(a, v);
+                    }
+                    else
+                    {
+                        ra.add(ids[b], v);
+                        cb.add(ids[a], v);
+                    }
+                }
+            }
+            
+            merge(rows, rstart, order);
+            if (cols != rows)
+            {
+                merge(cols, cstart, order);
+            }
+            return done;
+        }
+        
+        private void merge(TopHeap[] local, int start, int[] order)
+        {
+            for (int i = 0; i < local.length; i++)
+            {
+                if (local[i].size() > 0)
+                {
+                    TopHeap w = work[order[start + i]];
+                    synchronized (w)
+                    {
+                        w.addAll(local[i]);
+                        if (w.isFull())
+                        {
+                            floor[order[start + i]] = w.getMinimum();
+                        }
+                    }
+                }
+            }
+        }
+        
+        // The lowest score that can still get into the top n for a SNP, taking
+        // the higher of the local heap and the merged heap.  floor is read
+        // without locking; a stale value is lower so only means less pruning.
+        private float threshold(TopHeap local, int snp)
+        {
+            float t = floor[snp];
+            if (local.isFull())
+            {
+                t = Math.max(t, local.getMinimum());
+            }
+            return t;
+        }
+        
+        private final int n;
+        private final Bound bound;
+        private final float[] floor;
+        private final PackedGenotypes data;
+        private final Window window;
+        private final TopHeap[] work;
+        private final int[] ids;
+    }
+    
+    private class Refine implements Callable<Void>
+    {
+        public Refine(PackedGenotypes data, LDIndex candidates,
+                TopHeap[] work, int n, int start, int end, Progress progress)
+        {
+            this.data = data;
+            this.candidates = candidates;
+            this.work = work;
+            this.n = n;
+            this.start = start;
+            this.end = end;
             this.progress = progress;
         }
         
         @Override
         public Void call()
         {
-            for (int j = i + 1; j < data.length; j++)
+            Scratch scratch = scratch();
+            for (int a = start; a < end; a++)
             {
-                double v = calculate(data[i], data[j]);
-                work.get(i).add(j, v);
-                work.get(j).add(i, v);
+                TopHeap heap = new TopHeap(n);
+                int c = candidates.count(a);
+                for (int i = 0; i < c; i++)
+                {
+                    int b = candidates.neighbour(a, i);
+                    heap.add(b, (float) calculate(data, a, b, Double.NEGATIVE_INFINITY, scratch));
+                }
+                work[a] = heap;
+                progress.done(c);
             }
-            progress.done(data.length - i - 1);
             return null;
         }
         
+        private final PackedGenotypes data;
+        private final LDIndex candidates;
+        private final TopHeap[] work;
+        private final int n;
+        private final int start;
+        private final int end;
         private final Progress progress;
-        private final int i;
-        private final byte[][] data;
-        private final Map<Integer,TopQueue<Integer,Double>> work;
     }
     
     public static void setSilent(boolean s)
@@ -161,5 +828,35 @@ public abstract class Correlation
         SILENT = s;
     }
     
+    /**
+     * Sets whether pairs of SNPs that can't be in the top n are skipped when
+     * calculating the top n.  Doesn't change the results.  Defaults to true.
+     * @param p Whether to prune
+     */
+    public static void setPrune(boolean p)
+    {
+        PRUNE = p;
+    }
+    
+    /**
+     * Sets the amount of memory used for each block of SNPs when calculating
+     * LD out of core.  Two blocks are in memory at once.  Defaults to 64MB.
+     * @param bytes The memory per block in bytes
+     */
+    public static void setBlockMemory(long bytes)
+    {
+        BLOCK_MEMORY = bytes;
+    }
+    
     private static boolean SILENT = false;
+    private static boolean PRUNE = true;
+    private static long BLOCK_MEMORY = 64L * 1024 * 1024;
+    
+    // The most neighbours an index can hold, which is the most entries a
+    // Java array can have
+    private static final long MAX_NEIGHBOURS = Integer.MAX_VALUE - 8;
+    
+    // Bounds are multiplied by this before being compared with thresholds to
+    // cover any rounding difference between a bound and the calculation
+    static final double MARGIN = 1.000001;
 }
@@ -16,6 +16,9 @@
  */
 package Correlation;
 
+import Utils.PackedGenotypes;
+import java.util.Arrays;
+
 /**
  * Calculates LD using the expectation maximization method
  * @author Daniel Money
@@ -25,7 +28,8 @@ public class EM extends Correlation
     @Override
     public double calculate(byte[] d1, byte[] d2)
     {
-        int[][] counts = new int[3][3];
+        EMScratch scratch = new EMScratch();
+        int[][] counts = scratch.counts;
         int counta = 0; int countb = 0;
         for (int i = 0; i < d1.length; i++)
         {
@@ -48,36 +52,417 @@ public class EM extends Correlation
         double pA = 1.0 - 0.5 * (double) counta / (double) d1.length;
         double pB = 1.0 - 0.5 * (double) countb / (double) d2.length;
         
-        double pAB = maxpAB(counts, pA, pB);
+        double pAB = maxpAB(counts, pA, pB, d1.length, scratch);
+        
+        return calculateLD(pA, pB, pAB);
+    }
+    
+    @Override
+    public double calculate(PackedGenotypes data, int i, int j)
+    {
+        return calculate(data, i, j, Double.NEGATIVE_INFINITY, scratch());
+    }
+    
+    // Counts into the table in scratch rather than a new one for each pair
+    @Override
+    protected double calculate(PackedGenotypes data, int i, int j, double limit, Scratch scratch)
+    {
+        double[] p = frequencies(data);
+        double pA = p[i];
+        double pB = p[j];
+        
+        double pAB = maxpAB(counts(data, i, j, scratch.counts), pA, pB, data.columns(),
+                (EMScratch) scratch);
         
         return calculateLD(pA, pB, pAB);
     }
     
-    private double maxpAB(int[][] counts, double pA, double pB)
+    @Override
+    protected Scratch scratch()
+    {
+        return new EMScratch();
+    }
+    
+    @Override
+    protected Bound bound(PackedGenotypes data)
+    {
+        final double[] p = frequencies(data);
+        
+        // pAB is always within the range allowed by maxpAB so LD is at most
+        // the larger of the values at either end of that range.  Depends only
+        // on the allele frequencies of the two SNPs.
+        return new Bound()
+        {
+            @Override
+            public double maximum(int i, int j)
+            {
+                double pA = p[i];
+                double pB = p[j];
+                double denom = pA * (1.0 - pA) * pB * (1.0 - pB);
+                if (denom == 0.0)
+                {
+                    // LD is undefined here so don't bound it
+                    return Double.POSITIVE_INFINITY;
+                }
+                double low = Math.max(-pA * pB, -(1.0-pA) * (1.0-pB));
+                double high = Math.min(pA * (1.0-pB), pB * (1.0-pA));
+                return Math.max(low * low, high * high) / denom;
+            }
+            
+            // Each term of the bound is largest at one end or other of the
+            // band's range of allele frequencies.  pB(1 - pB) is concave so
+            // the denominator is smallest at one end.
+            @Override
+            public Band band(int[] snps, int start, int end)
+            {
+                double l = 1.0;
+                double h = 0.0;
+                for (int q = start; q < end; q++)
+                {
+                    l = Math.min(l, p[snps[q]]);
+                    h = Math.max(h, p[snps[q]]);
+                }
+                final double pl = l;
+                final double ph = h;
+                return new Band()
+                {
+                    @Override
+                    public double maximum(int i)
+                    {
+                        double pA = p[i];
+                        double denom = pA * (1.0 - pA) * Math.min(pl * (1.0 - pl), ph * (1.0 - ph));
+                        if (denom == 0.0)
+                        {
+                            return Double.POSITIVE_INFINITY;
+                        }
+                        double low = Math.min(pA * ph, (1.0 - pA) * (1.0 - pl));
+                        double high = Math.min(pA * (1.0 - pl), ph * (1.0 - pA));
+                        return Math.max(low * low, high * high) / denom;
+                    }
+                };
+            }
+            
+            @Override
+            public double key(int i)
+            {
+                return Math.min(p[i], 1.0 - p[i]);
+            }
+        };
+    }
+    
+    // Allele frequencies for every SNP in data.  Calculated once per data set
+    // rather than for every pair of SNPs.  Many threads call this at once so
+    // the data and frequencies are published together.
+    private double[] frequencies(PackedGenotypes data)
+    {
+        Frequencies f = frequencies;
+        if ((f == null) || (f.data != data))
+        {
+            double[] p = new double[data.rows()];
+            for (int i = 0; i < p.length; i++)
+            {
+                int[] c = data.counts(i);
+                p[i] = 1.0 - 0.5 * (double) (c[1] + 2 * c[2]) / (double) data.columns();
+            }
+            f = new Frequencies(data, p);
+            frequencies = f;
+        }
+        return f.p;
+    }
+    
+    // The maximum likelihood pAB between a and b, the range allowed by the
+    // allele frequencies.  Only the phase of double heterozygotes is unknown
+    // so l depends on pAB alone and its maximum is either at a turning point
+    // or at an end of the range.  The turning points are the real roots of a
+    // polynomial so are found exactly rather than by searching.
+    private double maxpAB(int[][] counts, double pA, double pB, int samples, EMScratch scratch)
     {
         double a = pA * pB + Math.max(-pA * pB, -(1.0-pA) * (1.0-pB));
         double b = pA * pB + Math.min(pA * (1.0-pB), pB * (1.0-pA));
-
-        double c = a + R*(b-a); double cl = l(c,counts,pA,pB);
-        do
+        
+        // n to n4 are the number of haplotypes known to be AB, Ab, aB and ab
+        // and h the number of double heterozygotes
+        double n = 2 * counts[0][0] + counts[0][1] + counts[1][0];
+        double n2 = 2 * counts[0][2] + counts[0][1] + counts[1][2];
+        double n3 = 2 * counts[2][0] + counts[1][0] + counts[2][1];
+        double n4 = 2 * counts[2][2] + counts[1][2] + counts[2][1];
+        double h = counts[1][1];
+        double total = (n + n2 + n3 + n4) / 2.0 + h;
+        if (total == 0.0)
         {
-            double d = c + R*(b-c); double dl = l(d,counts,pA,pB);
-            
-            if (cl >= dl)
+            // No samples are known at both SNPs so every pAB is as likely
+            return (a + b) / 2.0;
+        }
+        
+        double k = 1.0 - pA - pB;
+        double m = k - pA - pB;
+        double r = pA * pB;
+        double[] roots = scratch.roots;
+        int number;
+        if (total == samples)
+        {
+            // With no missing genotypes the allele frequencies match the
+            // counts.  At a turning point the expected number of AB
+            // haplotypes, counting the share of double heterozygotes
+            // expected to be AB/ab, is then pAB times the number of
+            // haplotypes.  Writing pab, pAb and paB in terms of pAB this is a
+            // cubic in pAB so can be solved directly.
+            number = within(roots, cubic(4.0 * total,
+                    2.0 * total * m - 2.0 * n - h,
+                    2.0 * total * r - n * m - h * k,
+                    -n * r, roots), a, b);
+        }
+        else
+        {
+            // Otherwise (missing data is counted in the frequencies but not
+            // the counts) the turning points are where the derivative of l,
+            //   n / pAB - n2 / pAb - n3 / paB + n4 / pab + h q' / q
+            // with q = pAB pab + pAb paB, is zero.  Multiplied through by
+            // the denominators, which are positive between a and b, this is
+            // a polynomial of degree five with the same sign.  s is the sum
+            // of the first four terms times pAB pAb paB pab and e is h times
+            // pAb paB pab.  The polynomial is then s q + e pAB q', with
+            // q = 2 pAB^2 + m pAB + r and q' = 4 pAB + m.
+            double[] s = scratch.haplotypes;
+            double[] e = scratch.heterozygotes;
+            Arrays.fill(s, 0.0);
+            Arrays.fill(e, 0.0);
+            product(s, n, pA, -1.0, pB, -1.0, k, 1.0);
+            product(s, -n2, 0.0, 1.0, pB, -1.0, k, 1.0);
+            product(s, -n3, 0.0, 1.0, pA, -1.0, k, 1.0);
+            product(s, n4, 0.0, 1.0, pA, -1.0, pB, -1.0);
+            product(e, h, pA, -1.0, pB, -1.0, k, 1.0);
+            double[] c = scratch.polynomial;
+            c[0] = r * s[0];
+            c[1] = r * s[1] + m * s[0] + m * e[0];
+            c[2] = r * s[2] + m * s[1] + 2.0 * s[0] + m * e[1] + 4.0 * e[0];
+            c[3] = r * s[3] + m * s[2] + 2.0 * s[1] + m * e[2] + 4.0 * e[1];
+            c[4] = m * s[3] + 2.0 * s[2] + m * e[3] + 4.0 * e[2];
+            c[5] = 2.0 * s[3] + 4.0 * e[3];
+            number = maxima(scratch, a, b);
+        }
+        
+        // l goes to minus infinity at an end of the range unless no
+        // haplotypes have the frequency that is zero there, so an end is
+        // only a candidate if there are none
+        boolean ea = (n == 0.0) || (n4 == 0.0);
+        boolean eb = (n2 == 0.0) || (n3 == 0.0);
+        if ((number == 1) && !ea && !eb)
+        {
+            return roots[0];
+        }
+        
+        // Otherwise keep the most likely
+        double best = (a + b) / 2.0;
+        double bestl = Double.NEGATIVE_INFINITY;
+        if (ea)
+        {
+            best = a;
+            bestl = l(a,counts,pA,pB);
+        }
+        if (eb)
+        {
+            double bl = l(b,counts,pA,pB);
+            if (bl > bestl)
+            {
+                best = b;
+                bestl = bl;
+            }
+        }
+        for (int q = 0; q < number; q++)
+        {
+            double rl = l(roots[q],counts,pA,pB);
+            if (rl > bestl)
+            {
+                best = roots[q];
+                bestl = rl;
+            }
+        }
+        return best;
+    }
+    
+    // Adds w (s1 + t1 x)(s2 + t2 x)(s3 + t3 x) to the cubic with coefficients
+    // p, lowest power first
+    private static void product(double[] p, double w, double s1, double t1,
+            double s2, double t2, double s3, double t3)
+    {
+        p[0] += w * s1 * s2 * s3;
+        p[1] += w * (t1 * s2 * s3 + s1 * t2 * s3 + s1 * s2 * t3);
+        p[2] += w * (t1 * t2 * s3 + t1 * s2 * t3 + s1 * t2 * t3);
+        p[3] += w * t1 * t2 * t3;
+    }
+    
+    // The turning points of l that are maxima, that is roots of the
+    // polynomial in scratch where it goes from positive to negative, between
+    // lo and hi.  Puts them in roots in scratch and returns the number found.
+    // The polynomial's second derivative is a cubic so its roots are found
+    // directly, and split the range into parts where the polynomial is
+    // convex or concave.  In each part the polynomial has one root if it
+    // changes sign and otherwise none or two, either side of its turning
+    // point.
+    private static int maxima(EMScratch scratch, double lo, double hi)
+    {
+        double[] p = scratch.polynomial;
+        double[] dp = scratch.derivative;
+        double[] ddp = scratch.second;
+        for (int i = 0; i < dp.length; i++)
+        {
+            dp[i] = p[i + 1] * (i + 1);
+        }
+        for (int i = 0; i < ddp.length; i++)
+        {
+            ddp[i] = dp[i + 1] * (i + 1);
+        }
+        double[] split = scratch.split;
+        int parts = within(split, cubic(ddp[3], ddp[2], ddp[1], ddp[0], split), lo, hi);
+        
+        int found = 0;
+        double x0 = lo;
+        double p0 = value(p, x0);
+        for (int q = 0; q <= parts; q++)
+        {
+            double x1 = (q < parts) ? split[q] : hi;
+            double p1 = value(p, x1);
+            if ((p0 < 0.0) != (p1 < 0.0))
             {
-                b = a;
-                a = d;
+                if (p1 < 0.0)
+                {
+                    scratch.roots[found++] = root(p, dp, x0, p0, x1, p1);
+                }
             }
             else
             {
-                a = c;
-                c = d;
-                cl = dl;
+                double d0 = value(dp, x0);
+                double d1 = value(dp, x1);
+                if ((d0 < 0.0) != (d1 < 0.0))
+                {
+                    double xm = root(dp, ddp, x0, d0, x1, d1);
+                    double pm = value(p, xm);
+                    // Of the two roots the maximum is the one where the
+                    // polynomial goes negative
+                    if ((pm < 0.0) && (p0 >= 0.0))
+                    {
+                        scratch.roots[found++] = root(p, dp, x0, p0, xm, pm);
+                    }
+                    else if ((pm >= 0.0) && (p0 < 0.0))
+                    {
+                        scratch.roots[found++] = root(p, dp, xm, pm, x1, p1);
+                    }
+                }
             }
+            x0 = x1;
+            p0 = p1;
         }
-        while (Math.abs(b - a) > 1e-4);
+        return found;
+    }
+    
+    // Keeps the first number values in x that are strictly between lo and
+    // hi, sorted.  Returns how many are kept.
+    private static int within(double[] x, int number, double lo, double hi)
+    {
+        int kept = 0;
+        for (int i = 0; i < number; i++)
+        {
+            if ((x[i] > lo) && (x[i] < hi))
+            {
+                x[kept++] = x[i];
+            }
+        }
+        Arrays.sort(x, 0, kept);
+        return kept;
+    }
+    
+    // The root of the polynomial p, with derivative dp, between lo and hi,
+    // where the polynomial has values flo and fhi of different signs.
+    // Newton's method from where the line between the ends crosses zero,
+    // bisecting instead if a step would leave the bracket or isn't
+    // shrinking it quickly, until steps are far smaller than needed.
+    private static double root(double[] p, double[] dp, double lo, double flo, double hi, double fhi)
+    {
+        double x = lo + (hi - lo) * flo / (flo - fhi);
+        if (!((x > lo) && (x < hi)))
+        {
+            x = lo + (hi - lo) / 2.0;
+        }
+        double step = hi - lo;
+        double last = step;
+        for (int it = 0; it < 200; it++)
+        {
+            double f = value(p, x);
+            if (f == 0.0)
+            {
+                return x;
+            }
+            if ((f < 0.0) == (flo < 0.0))
+            {
+                lo = x;
+            }
+            else
+            {
+                hi = x;
+            }
+            double df = value(dp, x);
+            double next = x - f / df;
+            if (!((next > lo) && (next < hi)) || (Math.abs(2.0 * f) > Math.abs(last * df)))
+            {
+                next = lo + (hi - lo) / 2.0;
+            }
+            last = step;
+            step = next - x;
+            if (Math.abs(step) < 1e-14)
+            {
+                return next;
+            }
+            x = next;
+        }
+        return x;
+    }
+    
+    // Value at x of the polynomial with coefficients p, lowest power first
+    private static double value(double[] p, double x)
+    {
+        double v = 0.0;
+        for (int i = p.length - 1; i >= 0; i--)
+        {
+            v = v * x + p[i];
+        }
+        return v;
+    }
+    
+    // Real roots of c3 x^3 + c2 x^2 + c1 x + c0 into roots.  Returns the
+    // number of roots.  c3 is assumed non-zero.
+    private static int cubic(double c3, double c2, double c1, double c0, double[] roots)
+    {
+        double a2 = c2 / c3;
+        double a1 = c1 / c3;
+        double a0 = c0 / c3;
+        
+        // Depressed cubic t^3 + pt + q with x = t - a2 / 3
+        double shift = a2 / 3.0;
+        double p = a1 - a2 * shift;
+        double q = (2.0 * a2 * a2 * a2 - 9.0 * a2 * a1 + 27.0 * a0) / 27.0;
+        double disc = q * q / 4.0 + p * p * p / 27.0;
         
-        return (b+a) / 2.0;
+        if (disc > 0.0)
+        {
+            // One real root (Cardano)
+            double sd = Math.sqrt(disc);
+            roots[0] = Math.cbrt(-q / 2.0 + sd) + Math.cbrt(-q / 2.0 - sd) - shift;
+            return 1;
+        }
+        if (p == 0.0)
+        {
+            roots[0] = -shift;
+            return 1;
+        }
+        // Three real roots (trigonometric method)
+        double rad = 2.0 * Math.sqrt(-p / 3.0);
+        double cos = Math.max(-1.0, Math.min(1.0, 3.0 * q / (p * rad)));
+        double theta = Math.acos(cos) / 3.0;
+        roots[0] = rad * Math.cos(theta) - shift;
+        roots[1] = rad * Math.cos(theta - 2.0 * Math.PI / 3.0) - shift;
+        roots[2] = rad * Math.cos(theta - 4.0 * Math.PI / 3.0) - shift;
+        return 3;
     }
     
     private double calculateLD(double pA, double pB, double pAB)
@@ -94,11 +479,11 @@ public class EM extends Correlation
         double paB = pB - pAB;
         double pab = 1 - pA - pB + pAB;
         
-        return  (2 * counts[0][0] + counts[0][1] + counts[1][0]) * Math.log(pAB) +
-                (2 * counts[0][2] + counts[0][1] + counts[1][2]) * Math.log(pAb) +
-                (2 * counts[2][0] + counts[1][0] + counts[2][1]) * Math.log(paB) +
-                (2 * counts[2][2] + counts[1][2] + counts[2][1]) * Math.log(pab) +
-                counts[1][1] * Math.log(pAB * pab + pAb * paB);
+        return  term(2 * counts[0][0] + counts[0][1] + counts[1][0], pAB) +
+                term(2 * counts[0][2] + counts[0][1] + counts[1][2], pAb) +
+                term(2 * counts[2][0] + counts[1][0] + counts[2][1], paB) +
+                term(2 * counts[2][2] + counts[1][2] + counts[2][1], pab) +
+                term(counts[1][1], pAB * pab + pAb * paB);
         
         /* This is the following rearranged and simplified:
          *      counts[0][0] * Math.log(pAB * pAB) +
@@ -113,5 +498,41 @@ public class EM extends Correlation
          */                
     }
     
-    private static final double R = (3.0 - Math.sqrt(5.0)) / 2.0;    
+    // c log(p), taken to be zero when c is zero so l is defined at the ends
+    // of the range of pAB.  There p can be a rounding error below zero.
+    private static double term(int c, double p)
+    {
+        return (c == 0) ? 0.0 : c * Math.log(Math.max(p, 0.0));
+    }
+    
+    // Space to work out the polynomial whose roots are the turning points
+    // of l and to find its roots
+    private static class EMScratch extends Scratch
+    {
+        // Parts of the polynomial, lowest power first
+        public final double[] haplotypes = new double[4];
+        public final double[] heterozygotes = new double[4];
+        // The polynomial and its first two derivatives
+        public final double[] polynomial = new double[6];
+        public final double[] derivative = new double[5];
+        public final double[] second = new double[4];
+        // Roots of the second derivative
+        public final double[] split = new double[3];
+        // Turning points
+        public final double[] roots = new double[5];
+    }
+    
+    private static class Frequencies
+    {
+        public Frequencies(PackedGenotypes data, double[] p)
+        {
+            this.data = data;
+            this.p = p;
+        }
+        
+        private final PackedGenotypes data;
+        private final double[] p;
+    }
+    
+    private volatile Frequencies frequencies;
 }
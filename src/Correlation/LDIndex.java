@@ -0,0 +1,495 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Correlation;
+
+import Utils.TopHeap;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SNPs most in LD with each SNP, ordered from most to least in LD, along
+ * with their LD.  Stored in compressed sparse row form: the neighbours of
+ * every SNP are stored one after another in a single array of ids and a
+ * matching array of scores, with a third array giving where each SNP's
+ * neighbours start.  This avoids an object per neighbour and lets the
+ * neighbours of a SNP be read straight from a primitive array.  An index read
+ * from a binary file is instead used straight from the memory mapped file,
+ * which has the same layout.
+ * @author Daniel Money
+ */
+public class LDIndex
+{
+    /**
+     * Constructor
+     * @param offsets Where the neighbours of each SNP start in ids and scores.
+     * Has one more entry than the number of SNPs, with the last entry being
+     * the total number of neighbours.
+     * @param ids The neighbour ids
+     * @param scores The LD of each neighbour.  NaN where the LD isn't known.
+     */
+    public LDIndex(int[] offsets, int[] ids, float[] scores)
+    {
+        this.offsets = offsets;
+        this.ids = ids;
+        this.scores = scores;
+        mappedOffsets = null;
+        mappedIds = null;
+        mappedScores = null;
+    }
+
+    /**
+     * Creates an index from the top n heap of each SNP
+     * @param heaps The heaps, one per SNP
+     */
+    public LDIndex(TopHeap[] heaps)
+    {
+        offsets = new int[heaps.length + 1];
+        for (int i = 0; i < heaps.length; i++)
+        {
+            offsets[i + 1] = offsets[i] + heaps[i].size();
+        }
+        ids = new int[offsets[heaps.length]];
+        scores = new float[offsets[heaps.length]];
+        for (int i = 0; i < heaps.length; i++)
+        {
+            System.arraycopy(heaps[i].getIds(), 0, ids, offsets[i], heaps[i].size());
+            System.arraycopy(heaps[i].getScores(), 0, scores, offsets[i], heaps[i].size());
+        }
+        mappedOffsets = null;
+        mappedIds = null;
+        mappedScores = null;
+    }
+
+    /**
+     * Creates an index from ordered lists of neighbours without known LD
+     * @param neighbours The neighbours of each SNP, most in LD first
+     */
+    public LDIndex(int[][] neighbours)
+    {
+        offsets = new int[neighbours.length + 1];
+        for (int i = 0; i < neighbours.length; i++)
+        {
+            offsets[i + 1] = offsets[i] + neighbours[i].length;
+        }
+        ids = new int[offsets[neighbours.length]];
+        scores = new float[offsets[neighbours.length]];
+        Arrays.fill(scores, Float.NaN);
+        for (int i = 0; i < neighbours.length; i++)
+        {
+            System.arraycopy(neighbours[i], 0, ids, offsets[i], neighbours[i].length);
+        }
+        mappedOffsets = null;
+        mappedIds = null;
+        mappedScores = null;
+    }
+
+    // An index mapped from a binary file.  Scores is null if the file has
+    // no scores.
+    private LDIndex(Section offsets, Section ids, Section scores)
+    {
+        this.offsets = null;
+        this.ids = null;
+        this.scores = null;
+        mappedOffsets = offsets;
+        mappedIds = ids;
+        mappedScores = scores;
+    }
+
+    /**
+     * Returns the number of SNPs
+     * @return The number of SNPs
+     */
+    public int size()
+    {
+        return (int) (((offsets != null) ? offsets.length : mappedOffsets.length()) - 1);
+    }
+
+    /**
+     * Returns the total number of neighbours over every SNP
+     * @return The number of neighbours
+     */
+    public int total()
+    {
+        return offset(size());
+    }
+
+    /**
+     * Returns the number of neighbours a SNP has
+     * @param snp The SNP
+     * @return The number of neighbours
+     */
+    public int count(int snp)
+    {
+        return offset(snp + 1) - offset(snp);
+    }
+
+    /**
+     * Returns the largest number of neighbours any SNP has.  SNPs can have
+     * different numbers of neighbours if LD was only calculated within a
+     * window.
+     * @return The largest number of neighbours
+     */
+    public int maxCount()
+    {
+        int max = 0;
+        for (int i = 0; i < size(); i++)
+        {
+            max = Math.max(max, count(i));
+        }
+        return max;
+    }
+
+    /**
+     * Returns the neighbour of a SNP at the given rank
+     * @param snp The SNP
+     * @param i The rank, zero being the SNP most in LD
+     * @return The neighbour's id
+     */
+    public int neighbour(int snp, int i)
+    {
+        int o = offset(snp) + i;
+        return (ids != null) ? ids[o] : mappedIds.getInt(o);
+    }
+
+    /**
+     * Copies the ids of the neighbours of a SNP most in LD into an array
+     * @param snp The SNP
+     * @param n How many neighbours to copy.  No more than count(snp).
+     * @param into The array to copy them into, starting at the beginning
+     */
+    public void neighbours(int snp, int n, int[] into)
+    {
+        int o = offset(snp);
+        if (ids != null)
+        {
+            System.arraycopy(ids, o, into, 0, n);
+        }
+        else
+        {
+            for (int i = 0; i < n; i++)
+            {
+                into[i] = mappedIds.getInt(o + i);
+            }
+        }
+    }
+
+    /**
+     * Returns the LD between a SNP and its neighbour at the given rank
+     * @param snp The SNP
+     * @param i The rank, zero being the SNP most in LD
+     * @return The LD, NaN if not known
+     */
+    public float score(int snp, int i)
+    {
+        int o = offset(snp) + i;
+        if (scores != null)
+        {
+            return scores[o];
+        }
+        return (mappedScores != null) ? dequantize(mappedScores.getShort(o)) : Float.NaN;
+    }
+
+    /**
+     * Returns the neighbours of a SNP as a list
+     * @param snp The SNP
+     * @return The neighbours, most in LD first
+     */
+    public List<Integer> getList(int snp)
+    {
+        List<Integer> list = new ArrayList<>(count(snp));
+        for (int i = 0; i < count(snp); i++)
+        {
+            list.add(neighbour(snp, i));
+        }
+        return list;
+    }
+
+    /**
+     * Returns where the neighbours of each SNP start in the arrays returned
+     * by getIds and getScores.  The returned array is the internal storage
+     * and should not be altered.  For an index read from a binary file it is
+     * a copy read from the file.
+     * @return The offsets
+     */
+    public int[] getOffsets()
+    {
+        if (offsets != null)
+        {
+            return offsets;
+        }
+        int[] copy = new int[size() + 1];
+        for (int i = 0; i < copy.length; i++)
+        {
+            copy[i] = mappedOffsets.getInt(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the neighbour ids of every SNP.  The returned array is the
+     * internal storage and should not be altered.  For an index read from a
+     * binary file it is a copy read from the file.
+     * @return The ids
+     */
+    public int[] getIds()
+    {
+        if (ids != null)
+        {
+            return ids;
+        }
+        int[] copy = new int[total()];
+        for (int i = 0; i < copy.length; i++)
+        {
+            copy[i] = mappedIds.getInt(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the LD of every neighbour.  The returned array is the internal
+     * storage and should not be altered.  For an index read from a binary
+     * file it is a copy read from the file.
+     * @return The scores
+     */
+    public float[] getScores()
+    {
+        if (scores != null)
+        {
+            return scores;
+        }
+        float[] copy = new float[total()];
+        for (int i = 0; i < copy.length; i++)
+        {
+            copy[i] = (mappedScores != null) ? dequantize(mappedScores.getShort(i)) : Float.NaN;
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the index to a file in binary format.  The file starts with a
+     * header of four ints: a magic number, the format version, the number of
+     * SNPs and flags (1 if scores are included).  This is followed by the
+     * total number of neighbours as a long.  Then comes where the neighbours
+     * of each SNP start, as for getOffsets, and then the neighbour ids, all
+     * as ints.  If included the scores follow as unsigned shorts, with LD
+     * quantized to 65534 steps between 0 and 1 and 65535 for unknown.  As
+     * every value has a fixed width the file is used as is when read, with
+     * nothing to decode.
+     * @param f The file to write to
+     * @throws IOException If there is a problem writing the file
+     */
+    public void write(File f) throws IOException
+    {
+        boolean hasScores = false;
+        for (int snp = 0; (snp < size()) && !hasScores; snp++)
+        {
+            for (int i = 0; i < count(snp); i++)
+            {
+                if (!Float.isNaN(score(snp, i)))
+                {
+                    hasScores = true;
+                    break;
+                }
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size());
+            out.writeInt(hasScores ? SCORES : 0);
+            out.writeLong(total());
+            for (int snp = 0; snp <= size(); snp++)
+            {
+                out.writeInt(offset(snp));
+            }
+            for (int snp = 0; snp < size(); snp++)
+            {
+                for (int i = 0; i < count(snp); i++)
+                {
+                    out.writeInt(neighbour(snp, i));
+                }
+            }
+            if (hasScores)
+            {
+                for (int snp = 0; snp < size(); snp++)
+                {
+                    for (int i = 0; i < count(snp); i++)
+                    {
+                        out.writeShort(quantize(score(snp, i)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by write.  The file is memory mapped and the
+     * index reads its neighbours straight from the mapping, so nothing is
+     * decoded or copied onto the heap.
+     * @param f The file to read
+     * @return The index
+     * @throws IOException If there is a problem reading the file or it is not
+     * in the binary format
+     */
+    public static LDIndex read(File f) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r"))
+        {
+            if ((raf.length() < HEADER) || (raf.readInt() != MAGIC))
+            {
+                throw new IOException("Not a binary LD file: " + f);
+            }
+            int version = raf.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException("Unsupported binary LD file version: " + version);
+            }
+            int snps = raf.readInt();
+            int flags = raf.readInt();
+            long total = raf.readLong();
+            if (total > Integer.MAX_VALUE)
+            {
+                throw new IOException("Too many neighbours in binary LD file: " + total);
+            }
+            boolean hasScores = (flags & SCORES) != 0;
+            long start = HEADER + 4L * (snps + 1);
+            long length = start + 4L * total + (hasScores ? 2L * total : 0L);
+            if (raf.length() != length)
+            {
+                throw new IOException("Binary LD file is the wrong length: " + f);
+            }
+
+            // Mappings stay valid after the file is closed
+            FileChannel channel = raf.getChannel();
+            return new LDIndex(new Section(channel, HEADER, snps + 1L, 4),
+                    new Section(channel, start, total, 4),
+                    hasScores ? new Section(channel, start + 4L * total, total, 2) : null);
+        }
+    }
+
+    /**
+     * Tests whether a file is in the binary format written by write, rather
+     * than the text format
+     * @param f The file
+     * @return Whether the file is binary
+     * @throws IOException If there is a problem reading the file
+     */
+    public static boolean isBinary(File f) throws IOException
+    {
+        if (f.length() < 4)
+        {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f)))
+        {
+            return in.readInt() == MAGIC;
+        }
+    }
+
+    private int offset(int snp)
+    {
+        return (offsets != null) ? offsets[snp] : mappedOffsets.getInt(snp);
+    }
+
+    private static short quantize(float v)
+    {
+        if (Float.isNaN(v))
+        {
+            return (short) UNKNOWN;
+        }
+        return (short) Math.round(Math.max(0.0f, Math.min(1.0f, v)) * (UNKNOWN - 1));
+    }
+
+    private static float dequantize(short s)
+    {
+        int q = s & 0xffff;
+        return (q == UNKNOWN) ? Float.NaN : (float) q / (float) (UNKNOWN - 1);
+    }
+
+    // A run of fixed width values in a file, mapped a section at a time as a
+    // single mapping is limited to 2GB.  Sections are a multiple of the
+    // width so no value is split between two.
+    private static class Section
+    {
+        public Section(FileChannel channel, long start, long length, int width) throws IOException
+        {
+            this.length = length;
+            this.width = width;
+            long bytes = length * width;
+            buffers = new MappedByteBuffer[(int) ((bytes + SIZE - 1) / SIZE)];
+            for (int i = 0; i < buffers.length; i++)
+            {
+                long offset = (long) i * SIZE;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset,
+                        Math.min(SIZE, bytes - offset));
+            }
+        }
+
+        public long length()
+        {
+            return length;
+        }
+
+        public int getInt(long i)
+        {
+            long b = i * width;
+            return buffers[(int) (b >>> SHIFT)].getInt((int) (b & (SIZE - 1)));
+        }
+
+        public short getShort(long i)
+        {
+            long b = i * width;
+            return buffers[(int) (b >>> SHIFT)].getShort((int) (b & (SIZE - 1)));
+        }
+
+        private final long length;
+        private final int width;
+        private final MappedByteBuffer[] buffers;
+
+        private static final int SHIFT = 30;
+        private static final long SIZE = 1L << SHIFT;
+    }
+
+    // Only one of the arrays and the mapped sections is used
+    private final int[] offsets;
+    private final int[] ids;
+    private final float[] scores;
+    private final Section mappedOffsets;
+    private final Section mappedIds;
+    private final Section mappedScores;
+
+    private static final int MAGIC = 0x4c444958;
+    // Version 1 stored varint encoded ids, which had to be decoded on reading
+    private static final int VERSION = 2;
+    private static final int SCORES = 1;
+    private static final int UNKNOWN = 65535;
+    private static final int HEADER = 24;
+}
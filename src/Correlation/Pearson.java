@@ -16,6 +16,8 @@
  */
 package Correlation;
 
+import Utils.PackedGenotypes;
+
 /**
  * Calculates LD as a simple Pearson correlation
  * @author Daniel Money
@@ -36,28 +38,143 @@ public class Pearson extends Correlation
             c++;
         }
         
-        int tota = counts[1][0] + counts[1][1] + counts[1][2] +
-                2 * (counts[2][0] + counts[2][1] + counts[2][2]);
-        double meana = (double) tota / (double) c;
+        return r2(counts[0][0], counts[0][1], counts[0][2],
+                counts[1][0], counts[1][1], counts[1][2],
+                counts[2][0], counts[2][1], counts[2][2], c);
+    }
+    
+    @Override
+    public double calculate(PackedGenotypes data, int i, int j)
+    {
+        long[] a = data.row(i);
+        long[] b = data.row(j);
         
-        int totb = counts[0][1] + counts[1][1] + counts[2][1] +
-                2 * (counts[0][2] + counts[1][2] + counts[2][2]);
-        double meanb = (double) totb / (double) c;
+        // Count the four cells of the table where both genotypes are non-zero
+        // plus the margins over samples known at both SNPs.  The remaining
+        // cells follow from these.
+        int c11 = 0; int c12 = 0; int c21 = 0; int c22 = 0;
+        int a1 = 0; int a2 = 0; int b1 = 0; int b2 = 0; int known = 0;
+        for (int w = 0; w < a.length; w += 3)
+        {
+            long ao = a[w + PackedGenotypes.ONE];
+            long at = a[w + PackedGenotypes.TWO];
+            long ak = a[w + PackedGenotypes.KNOWN];
+            long bo = b[w + PackedGenotypes.ONE];
+            long bt = b[w + PackedGenotypes.TWO];
+            long bk = b[w + PackedGenotypes.KNOWN];
+            
+            c11 += Long.bitCount(ao & bo);
+            c12 += Long.bitCount(ao & bt);
+            c21 += Long.bitCount(at & bo);
+            c22 += Long.bitCount(at & bt);
+            a1 += Long.bitCount(ao & bk);
+            a2 += Long.bitCount(at & bk);
+            b1 += Long.bitCount(bo & ak);
+            b2 += Long.bitCount(bt & ak);
+            known += Long.bitCount(ak & bk);
+        }
         
-        double xy = 0.0;
-        double xx = 0.0;
-        double yy = 0.0;
+        int c10 = a1 - c11 - c12;
+        int c20 = a2 - c21 - c22;
+        int c01 = b1 - c11 - c21;
+        int c02 = b2 - c12 - c22;
+        int c00 = known - a1 - a2 - c01 - c02;
         
-        for (int i = 0; i < 3; i++)
+        return r2(c00, c01, c02, c10, c11, c12, c20, c21, c22, data.columns());
+    }
+    
+    // Checks the bound again once the margins of the table are known, which
+    // takes five of the nine popcounts, and only counts the rest of the
+    // table if r squared could reach the limit.  With missing genotypes this
+    // bound is much tighter than the one from per-SNP counts as it knows
+    // which samples are known at both SNPs.  r squared is never negative so
+    // with no limit above zero it's calculated in one pass.
+    @Override
+    protected double calculate(PackedGenotypes data, int i, int j, double limit, Scratch scratch)
+    {
+        if (!(limit > 0.0))
         {
-            for (int j = 0; j < 3; j++)
-            {
-                xy += (double) counts[i][j] * ((double) i - meana) * ((double) j - meanb);
-                xx += (double) counts[i][j] * ((double) i - meana) * ((double) i - meana);
-                yy += (double) counts[i][j] * ((double) j - meanb) * ((double) j - meanb);
-            }
+            return calculate(data, i, j);
         }
         
+        long[] a = data.row(i);
+        long[] b = data.row(j);
+        
+        int a1 = 0; int a2 = 0; int b1 = 0; int b2 = 0; int known = 0;
+        for (int w = 0; w < a.length; w += 3)
+        {
+            long ak = a[w + PackedGenotypes.KNOWN];
+            long bk = b[w + PackedGenotypes.KNOWN];
+            a1 += Long.bitCount(a[w + PackedGenotypes.ONE] & bk);
+            a2 += Long.bitCount(a[w + PackedGenotypes.TWO] & bk);
+            b1 += Long.bitCount(b[w + PackedGenotypes.ONE] & ak);
+            b2 += Long.bitCount(b[w + PackedGenotypes.TWO] & ak);
+            known += Long.bitCount(ak & bk);
+        }
+        if (!possible(a1 + a2, a2, b1 + b2, b2, known, data.columns(), limit))
+        {
+            return Double.NEGATIVE_INFINITY;
+        }
+        
+        int c11 = 0; int c12 = 0; int c21 = 0; int c22 = 0;
+        for (int w = 0; w < a.length; w += 3)
+        {
+            long ao = a[w + PackedGenotypes.ONE];
+            long at = a[w + PackedGenotypes.TWO];
+            long bo = b[w + PackedGenotypes.ONE];
+            long bt = b[w + PackedGenotypes.TWO];
+            c11 += Long.bitCount(ao & bo);
+            c12 += Long.bitCount(ao & bt);
+            c21 += Long.bitCount(at & bo);
+            c22 += Long.bitCount(at & bt);
+        }
+        
+        int c10 = a1 - c11 - c12;
+        int c20 = a2 - c21 - c22;
+        int c01 = b1 - c11 - c21;
+        int c02 = b2 - c12 - c22;
+        int c00 = known - a1 - a2 - c01 - c02;
+        
+        return r2(c00, c01, c02, c10, c11, c12, c20, c21, c22, data.columns());
+    }
+    
+    @Override
+    protected Bound bound(PackedGenotypes data)
+    {
+        return new PearsonBound(data);
+    }
+    
+    // Calculates r squared from the table of genotype counts.  Written out
+    // in full, rather than as a loop over an array, so the packed calculation
+    // doesn't have to allocate a table for every pair.  The order of the sums
+    // is the same as a loop over the table would be so both calculate methods
+    // give identical results.
+    private static double r2(int c00, int c01, int c02, int c10, int c11, int c12,
+            int c20, int c21, int c22, int c)
+    {
+        int tota = c10 + c11 + c12 + 2 * (c20 + c21 + c22);
+        double meana = (double) tota / (double) c;
+        
+        int totb = c01 + c11 + c21 + 2 * (c02 + c12 + c22);
+        double meanb = (double) totb / (double) c;
+        
+        double a0 = 0.0 - meana;
+        double a1 = 1.0 - meana;
+        double a2 = 2.0 - meana;
+        double b0 = 0.0 - meanb;
+        double b1 = 1.0 - meanb;
+        double b2 = 2.0 - meanb;
+        
+        double xy = 0.0 + (double) c00 * a0 * b0 + (double) c01 * a0 * b1 + (double) c02 * a0 * b2
+                + (double) c10 * a1 * b0 + (double) c11 * a1 * b1 + (double) c12 * a1 * b2
+                + (double) c20 * a2 * b0 + (double) c21 * a2 * b1 + (double) c22 * a2 * b2;
+        double xx = 0.0 + (double) c00 * a0 * a0 + (double) c01 * a0 * a0 + (double) c02 * a0 * a0
+                + (double) c10 * a1 * a1 + (double) c11 * a1 * a1 + (double) c12 * a1 * a1
+                + (double) c20 * a2 * a2 + (double) c21 * a2 * a2 + (double) c22 * a2 * a2;
+        double yy = 0.0 + (double) c00 * b0 * b0 + (double) c01 * b1 * b1 + (double) c02 * b2 * b2
+                + (double) c10 * b0 * b0 + (double) c11 * b1 * b1 + (double) c12 * b2 * b2
+                + (double) c20 * b0 * b0 + (double) c21 * b1 * b1 + (double) c22 * b2 * b2;
+        
         // If we have an invariant site then xx or yy will be zero, in which
         // case return a correlation of zero.  This ensures invariant sites are
         // sorted to the bottom of the list of LD sites and so aren't used in
@@ -70,4 +187,177 @@ public class Pearson extends Correlation
         
         return (xy * xy) / (xx * yy);
     }
+    
+    // Upper bound on r squared over every table of counts whose margins are
+    // within the given ranges.  u1 and u2 are the number of samples known at
+    // both SNPs with genotype at least 1 and with genotype 2 at SNP 1, v1
+    // and v2 the same at SNP 2, n the number of samples known at both and c
+    // the total number of samples.
+    //
+    // r squared is calculated with the mean taken over all c samples but the
+    // sums over the n known at both.  With X, Q and P the sums of x, x^2 and
+    // xy over those samples (x and y the two genotypes) and k = (2c - n) / c^2
+    // the sum of products about the means is P - XYk and the sums of squares
+    // are Q - X^2 k and the same for y.  Genotypes are sums of indicators
+    // (g >= 1) + (g >= 2) so P is the sum over pairs of indicators of the
+    // number of samples where both are set, which is largest when the sets
+    // overlap as much as possible and smallest when as little.
+    //
+    // Each part is bounded over the ranges separately.  The sums of squares
+    // are concave in the margins so are smallest at a corner of the ranges.
+    // With missing genotypes the exact margins depend on which samples are
+    // known at both SNPs; a bound from per-SNP counts has to allow for every
+    // genotype missing at one SNP being known at the other, which makes it
+    // loose, but it is still exact when nothing is missing.
+    private static double maximum(int u1l, int u1h, int u2l, int u2h,
+            int v1l, int v1h, int v2l, int v2h, int nl, int nh, int c)
+    {
+        double cc = (double) c * (double) c;
+        double kl = (double) (2 * c - nh) / cc;
+        double kh = (double) (2 * c - nl) / cc;
+        double sxx = squares(u1l, u1h, u2l, u2h, kh);
+        double syy = squares(v1l, v1h, v2l, v2h, kh);
+        if ((sxx <= 0.0) || (syy <= 0.0))
+        {
+            // If the sums of squares are exact and zero the calculation gives
+            // zero, else they could be small enough to give anything
+            return ((u1l == u1h) && (u2l == u2h) && (v1l == v1h) && (v2l == v2h) && (nl == nh)) ?
+                    0.0 : Double.POSITIVE_INFINITY;
+        }
+        long max = Math.min(u1h, v1h) + Math.min(u1h, v2h) + Math.min(u2h, v1h) + Math.min(u2h, v2h);
+        long min = Math.max(0, u1l + v1l - nh) + Math.max(0, u1l + v2l - nh) +
+                Math.max(0, u2l + v1l - nh) + Math.max(0, u2l + v2l - nh);
+        double high = (double) max - (double) (u1l + u2l) * (double) (v1l + v2l) * kl;
+        double low = (double) min - (double) (u1h + u2h) * (double) (v1h + v2h) * kh;
+        return Math.max(high * high, low * low) / (sxx * syy);
+    }
+    
+    // Whether r squared can reach limit given the exact margins of the table,
+    // with the same margin for rounding as other bounds.  Works as maximum
+    // with every range a single value, but multiplied through by c^2 and
+    // the denominator so there are no divisions, as this is checked for
+    // most pairs.
+    private static boolean possible(int u1, int u2, int v1, int v2, int n, int c, double limit)
+    {
+        double cc = (double) c * (double) c;
+        double k = (double) (2 * c - n);
+        double x = (double) (u1 + u2);
+        double y = (double) (v1 + v2);
+        double sxx = (double) (u1 + 3 * u2) * cc - x * x * k;
+        double syy = (double) (v1 + 3 * v2) * cc - y * y * k;
+        long max = Math.min(u1, v1) + Math.min(u1, v2) + Math.min(u2, v1) + Math.min(u2, v2);
+        long min = Math.max(0, u1 + v1 - n) + Math.max(0, u1 + v2 - n) +
+                Math.max(0, u2 + v1 - n) + Math.max(0, u2 + v2 - n);
+        double high = (double) max * cc - x * y * k;
+        double low = (double) min * cc - x * y * k;
+        return Math.max(high * high, low * low) * MARGIN >= limit * sxx * syy;
+    }
+    
+    // Smallest sum of squares about the mean for genotype counts in the given
+    // ranges, as described in maximum
+    private static double squares(int u1l, int u1h, int u2l, int u2h, double k)
+    {
+        return Math.min(Math.min(squares(u1l, u2l, k), squares(u1l, u2h, k)),
+                Math.min(squares(u1h, u2l, k), squares(u1h, u2h, k)));
+    }
+    
+    private static double squares(int u1, int u2, double k)
+    {
+        double x = (double) (u1 + u2);
+        return (double) (u1 + 3 * u2) - x * x * k;
+    }
+    
+    // Bounds r squared from per-SNP counts.  Samples missing at one SNP of a
+    // pair may or may not be among those with any given genotype at the
+    // other, so each margin can be anything from its count at that SNP less
+    // the number missing at the other SNP to its count.
+    private static class PearsonBound implements Bound
+    {
+        public PearsonBound(PackedGenotypes data)
+        {
+            c = data.columns();
+            ge1 = new int[data.rows()];
+            ge2 = new int[data.rows()];
+            missing = new int[data.rows()];
+            for (int i = 0; i < data.rows(); i++)
+            {
+                int[] ct = data.counts(i);
+                ge1[i] = ct[1] + ct[2];
+                ge2[i] = ct[2];
+                missing[i] = c - ct[0] - ct[1] - ct[2];
+            }
+        }
+        
+        // Pairs where either SNP has missing genotypes are left to the check
+        // in calculate, which knows the margins, as with more than a few
+        // missing genotypes this bound is too loose to be worth working out
+        // for every pair.  It's still used for bands, where it's only worked
+        // out once per band for each SNP.
+        @Override
+        public double maximum(int i, int j)
+        {
+            if ((missing[i] != 0) || (missing[j] != 0))
+            {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Pearson.maximum(Math.max(0, ge1[i] - missing[j]), ge1[i],
+                    Math.max(0, ge2[i] - missing[j]), ge2[i],
+                    Math.max(0, ge1[j] - missing[i]), ge1[j],
+                    Math.max(0, ge2[j] - missing[i]), ge2[j],
+                    c - missing[i] - missing[j], c - Math.max(missing[i], missing[j]), c);
+        }
+        
+        @Override
+        public Band band(int[] snps, int start, int end)
+        {
+            return new PearsonBand(snps, start, end);
+        }
+        
+        @Override
+        public double key(int i)
+        {
+            return (double) (ge1[i] + ge2[i]) / (double) Math.max(1, 2 * (c - missing[i]));
+        }
+        
+        // The ranges of counts over a band of SNPs, which bound LD between a
+        // SNP and every SNP in the band in the same way as for a pair
+        private class PearsonBand implements Band
+        {
+            public PearsonBand(int[] snps, int start, int end)
+            {
+                for (int p = start; p < end; p++)
+                {
+                    int j = snps[p];
+                    ge1l = Math.min(ge1l, ge1[j]);
+                    ge1h = Math.max(ge1h, ge1[j]);
+                    ge2l = Math.min(ge2l, ge2[j]);
+                    ge2h = Math.max(ge2h, ge2[j]);
+                    missingl = Math.min(missingl, missing[j]);
+                    missingh = Math.max(missingh, missing[j]);
+                }
+            }
+            
+            @Override
+            public double maximum(int i)
+            {
+                return Pearson.maximum(Math.max(0, ge1[i] - missingh), ge1[i],
+                        Math.max(0, ge2[i] - missingh), ge2[i],
+                        Math.max(0, ge1l - missing[i]), ge1h,
+                        Math.max(0, ge2l - missing[i]), ge2h,
+                        c - missing[i] - missingh, c - Math.max(missing[i], missingl), c);
+            }
+            
+            private int ge1l = Integer.MAX_VALUE;
+            private int ge1h = 0;
+            private int ge2l = Integer.MAX_VALUE;
+            private int ge2h = 0;
+            private int missingl = Integer.MAX_VALUE;
+            private int missingh = 0;
+        }
+        
+        private final int c;
+        private final int[] ge1;
+        private final int[] ge2;
+        private final int[] missing;
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Correlation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Restricts which pairs of SNPs LD is calculated for to those that are close
+ * to each other.  SNPs are put in order (by chromosome and then position if
+ * positions are known, else in the order they appear) and only pairs on the
+ * same chromosome and within the window in that order are compared.
+ * @author Daniel Money
+ */
+public class Window
+{
+    /**
+     * Creates a window of a given number of SNPs, using the order the SNPs
+     * appear in.  Used when positions are not known.
+     * @param number The number of SNPs
+     * @param snps The size of the window in SNPs
+     */
+    public Window(int number, int snps)
+    {
+        order = new int[number];
+        end = new int[number];
+        for (int i = 0; i < number; i++)
+        {
+            order[i] = i;
+            end[i] = (int) Math.min((long) i + snps + 1, number);
+        }
+    }
+
+    /**
+     * Creates a window that includes every pair of SNPs but with the SNPs in
+     * the given order.
+     * @param order The order of the SNPs.  Position i is the index of the i-th
+     * SNP in the order.
+     */
+    public Window(int[] order)
+    {
+        this.order = order;
+        end = new int[order.length];
+        Arrays.fill(end, order.length);
+    }
+
+    /**
+     * Creates a window based on SNP positions.  Either or both of a base pair
+     * and SNP limit can be given.
+     * @param chrom The chromosome of each SNP
+     * @param pos The position of each SNP
+     * @param bp The size of the window in base pairs.  Zero for no limit.
+     * @param snps The size of the window in SNPs.  Zero for no limit.
+     */
+    public Window(final String[] chrom, final long[] pos, long bp, int snps)
+    {
+        int number = chrom.length;
+        Integer[] sorted = new Integer[number];
+        for (int i = 0; i < number; i++)
+        {
+            sorted[i] = i;
+        }
+        // Chromosomes just need grouping together so string order is fine
+        Arrays.sort(sorted, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer i, Integer j)
+            {
+                int c = chrom[i].compareTo(chrom[j]);
+                if (c != 0)
+                {
+                    return c;
+                }
+                return Long.compare(pos[i], pos[j]);
+            }
+        });
+
+        order = new int[number];
+        for (int i = 0; i < number; i++)
+        {
+            order[i] = sorted[i];
+        }
+
+        end = new int[number];
+        int e = 0;
+        for (int i = 0; i < number; i++)
+        {
+            if (e <= i)
+            {
+                e = i + 1;
+            }
+            long max = (snps > 0) ? Math.min((long) i + snps + 1, number) : number;
+            while ((e < max) && chrom[order[e]].equals(chrom[order[i]]) &&
+                    ((bp <= 0) || (pos[order[e]] - pos[order[i]] <= bp)))
+            {
+                e++;
+            }
+            end[i] = e;
+        }
+    }
+
+    /**
+     * Returns the order SNPs are put in.  Position i of the returned array
+     * is the index of the i-th SNP in that order.
+     * @return The order of the SNPs
+     */
+    public int[] getOrder()
+    {
+        return order;
+    }
+
+    /**
+     * Returns the end of the window for the SNP at a given position in the
+     * order returned by getOrder.  SNPs at positions from i + 1 up to, but not
+     * including, the returned value are in the window.
+     * @param i Position in the order
+     * @return End of the window
+     */
+    public int getEnd(int i)
+    {
+        return end[i];
+    }
+
+    /**
+     * Returns the end of the window for every SNP, in the order returned by
+     * getOrder.  Ends never decrease.  The returned array is the internal
+     * storage and should not be altered.
+     * @return Ends of the windows
+     */
+    public int[] getEnds()
+    {
+        return end;
+    }
+
+    /**
+     * Returns the number of SNPs
+     * @return The number of SNPs
+     */
+    public int size()
+    {
+        return order.length;
+    }
+
+    /**
+     * Returns the total number of pairs of SNPs in the window
+     * @return The number of pairs
+     */
+    public long pairs()
+    {
+        long p = 0;
+        for (int i = 0; i < end.length; i++)
+        {
+            p += end[i] - i - 1;
+        }
+        return p;
+    }
+
+    private final int[] order;
+    private final int[] end;
+}
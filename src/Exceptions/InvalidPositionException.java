@@ -0,0 +1,47 @@
+/*
+ * This file is part of LinkImpute.
+ * 
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Exceptions;
+
+/**
+ * Exception to be thrown if SNP positions are invalid or don't match the data
+ * @author Daniel Money
+ */
+public class InvalidPositionException extends DataException
+{
+
+    /**
+     * Constructor for use when a position can't be read
+     * @param s The invalid position
+     */
+    public InvalidPositionException(String s)
+    {
+        super("Invalid SNP position: " + s);
+    }
+    
+    /**
+     * Constructor for use when the number of positions is wrong
+     * @param positions The number of positions
+     * @param snps The number of SNPs in the data
+     */
+    public InvalidPositionException(int positions, int snps)
+    {
+        super("Found " + positions + " SNP positions but the data has " + snps + " SNPs");
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Executable;
+
+import Correlation.Correlation;
+import Correlation.LDIndex;
+import Correlation.Pearson;
+import Methods.Knni;
+import Methods.KnniLD;
+import Methods.Mode;
+import Utils.MissingIndex;
+import Utils.PackedGenotypes;
+import Utils.SampleWeights;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Measures the memory allocated while imputing by Mode, kNNi and LD-kNNi on
+ * a synthetic data set, to check the imputation paths don't allocate for
+ * each genotype.  Distances and LD are calculated beforehand and not
+ * counted.  Allocations are summed over every thread, including the pool
+ * threads imputation runs on, and each method is run once before being
+ * measured so class loading and compilation aren't counted.
+ * <p>
+ * Usage: AllocationBenchmark [samples] [snps] [proportion missing]
+ * @author Daniel Money
+ */
+public class AllocationBenchmark
+{
+    /**
+     * Main method
+     * @param args Optionally the number of samples, number of SNPs and
+     * proportion of genotypes missing.  Default to 500, 5000 and 0.05.
+     * @throws Exception If there is a problem imputing
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int samples = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int snps = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+        double missing = (args.length > 2) ? Double.parseDouble(args[2]) : 0.05;
+
+        final byte[][] data = synthetic(samples, snps, missing, new Random(1));
+        final MissingIndex index = new MissingIndex(data);
+
+        Correlation.setSilent(true);
+        Knni.setSilent(true);
+        KnniLD.setSilent(true);
+        final SampleWeights weight = Knni.weight(data);
+        final LDIndex ld = new Pearson().topn(PackedGenotypes.transposed(data), 20);
+
+        System.out.println(samples + " samples, " + snps + " SNPs, " + index.total() +
+                " missing genotypes");
+
+        // Every method returns a copy of the data with the missing genotypes
+        // filled in, which is the one allocation that can't be avoided
+        long copy = measure(new Callable<byte[][]>()
+        {
+            @Override
+            public byte[][] call()
+            {
+                return MissingIndex.copy(data);
+            }
+        });
+        System.out.println("Copy of the data:\t" + copy + " bytes");
+
+        report("Mode", index, copy, new Callable<byte[][]>()
+        {
+            @Override
+            public byte[][] call()
+            {
+                return new Mode().compute(data, index);
+            }
+        });
+        report("kNNi", index, copy, new Callable<byte[][]>()
+        {
+            @Override
+            public byte[][] call() throws Exception
+            {
+                return new Knni(5).compute(data, weight, index);
+            }
+        });
+        report("LD-kNNi", index, copy, new Callable<byte[][]>()
+        {
+            @Override
+            public byte[][] call() throws Exception
+            {
+                return new KnniLD(ld, 5, 20).compute(data, index);
+            }
+        });
+    }
+
+    private static void report(String name, MissingIndex index, long copy, Callable<byte[][]> run)
+            throws Exception
+    {
+        long bytes = measure(run);
+        System.out.println(name + ":\t" + bytes + " bytes, " +
+                String.format("%.2f", (double) (bytes - copy) / (double) index.total()) +
+                " bytes per imputed genotype excluding the copy");
+    }
+
+    // Bytes allocated by every thread while running, after running once to
+    // warm up
+    private static long measure(Callable<byte[][]> run) throws Exception
+    {
+        run.call();
+        Map<Long,Long> before = allocated();
+        run.call();
+        Map<Long,Long> after = allocated();
+
+        // Threads that finish in between are ignored and threads started in
+        // between count from zero
+        long total = 0;
+        for (Map.Entry<Long,Long> e: after.entrySet())
+        {
+            Long b = before.get(e.getKey());
+            total += e.getValue() - ((b == null) ? 0 : b);
+        }
+        return total;
+    }
+
+    private static Map<Long,Long> allocated()
+    {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = bean.getThreadAllocatedBytes(ids);
+        Map<Long,Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++)
+        {
+            if (bytes[i] >= 0)
+            {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    // Samples are drawn from a few founder haplotypes, copied in runs of
+    // SNPs, so there is both sample similarity and LD for the methods to use
+    private static byte[][] synthetic(int samples, int snps, double missing, Random r)
+    {
+        int founders = 8;
+        boolean[][] hap = new boolean[founders][snps];
+        for (int f = 0; f < founders; f++)
+        {
+            for (int j = 0; j < snps; j++)
+            {
+                hap[f][j] = r.nextDouble() < 0.3 + 0.4 * ((j * 7) % 10) / 10.0;
+            }
+        }
+
+        byte[][] data = new byte[samples][snps];
+        for (int s = 0; s < samples; s++)
+        {
+            int h1 = r.nextInt(founders);
+            int h2 = r.nextInt(founders);
+            for (int j = 0; j < snps; j++)
+            {
+                if (r.nextDouble() < 0.01)
+                {
+                    h1 = r.nextInt(founders);
+                }
+                if (r.nextDouble() < 0.01)
+                {
+                    h2 = r.nextInt(founders);
+                }
+                if (r.nextDouble() < missing)
+                {
+                    data[s][j] = -1;
+                }
+                else
+                {
+                    data[s][j] = (byte) ((hap[h1][j] ? 1 : 0) + (hap[h2][j] ? 1 : 0));
+                }
+            }
+        }
+        return data;
+    }
+}
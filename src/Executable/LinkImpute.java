@@ -20,7 +20,7 @@ package Executable;
 import Mask.Mask;
 import Exceptions.DataException;
 import Exceptions.InvalidGenotypeException;
-import Exceptions.NotEnoughGenotypesException;
+import Exceptions.InvalidPositionException;
 import Exceptions.WrongNumberOfSNPsException;
 import Files.PlinkNumeric;
 import Files.VCF;
@@ -28,14 +28,23 @@ import Methods.Knni;
 import Methods.KnniLD;
 import Methods.Mode;
 import Correlation.Correlation;
+import Correlation.EM;
+import Correlation.LDIndex;
 import Correlation.Pearson;
+import Correlation.Window;
 import Files.PlinkPed;
 import Files.VCFData.FormatDefinition;
 import Files.VCFMappers.ByteMapper;
 import Files.VCFData.Position;
 import Methods.KnniLDOpt;
 import Methods.KnniOpt;
+import Methods.NearestSamples;
+import Methods.NeighbourBlocks;
 import Utils.Optimize;
+import Utils.MappedGenotypes;
+import Utils.MissingIndex;
+import Utils.PackedGenotypes;
+import Utils.SampleWeights;
 import Utils.Optimize.OptimizeException;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -97,10 +106,25 @@ public class LinkImpute
         
         options.addOption(Option.builder().longOpt("ldout").hasArg().desc("Output the snps most in LD with each snp to the given file").build());
         options.addOption(Option.builder().longOpt("ldnum").hasArg().desc("Output the given number of snps most in LD. Defaults to 65").build());
+        options.addOption(Option.builder().longOpt("ldbinary").desc("Write ldout in binary format, which ldin uses straight from the file rather than parsing it").build());
         options.addOption(Option.builder().longOpt("ldin").hasArg().desc("Read LD information from the given file rather than calculate it").build());
         options.addOption(Option.builder().longOpt("ldonly").desc("Do not perform the imputation.  Use to obtain just the LD information").build());
+        options.addOption(Option.builder().longOpt("ldwindow").hasArg().desc("Only calculate LD between snps within the given number of base pairs of each other").build());
+        options.addOption(Option.builder().longOpt("ldwindowsnps").hasArg().desc("Only calculate LD between snps within the given number of snps of each other").build());
+        options.addOption(Option.builder().longOpt("ldsample").hasArg().desc("Find candidate snps in LD using only the given number of samples before calculating exact LD for the candidates").build());
+        options.addOption(Option.builder().longOpt("ldcandidates").hasArg().desc("Number of candidate snps to find per snp when using ldsample. Defaults to four times ldnum").build());
+        options.addOption(Option.builder().longOpt("ldrecall").desc("Also calculate exact LD and report the recall of the ldsample result").build());
+        options.addOption(Option.builder().longOpt("ldem").desc("Calculate LD using the EM method rather than genotype correlation").build());
+        options.addOption(Option.builder().longOpt("ldtemp").hasArg().desc("Calculate LD without holding all the data in memory, using files starting with the given prefix for the packed data and checkpoints. An interrupted run with the same prefix carries on from its last checkpoint").build());
+        options.addOption(Option.builder().longOpt("ldmap").hasArg().desc("Read snp positions from the given plink map or bim file. Needed for ldwindow unless using VCF").build());
+        
+        options.addOption(Option.builder().longOpt("weightout").hasArg().desc("Output the weights between samples to the given file").build());
+        options.addOption(Option.builder().longOpt("nearest").hasArg().desc("Keep only the samples nearest each sample, enough for k up to the given value, rather than the weights between every pair of samples. Uses much less memory with many samples. k is not optimized past the given value").build());
+        options.addOption(Option.builder().longOpt("weightin").hasArg().desc("Read the weights between samples from the given file rather than calculate them").build());
         
         options.addOption(Option.builder().longOpt("nummask").hasArg().desc("Number of genotypes to mask when optimizing.").build());
+        options.addOption(Option.builder().longOpt("prune").desc("Abandon LD-kNNi distances between samples once they cannot be among the k closest. Does not change the result but only saves time when l is large").build());
+        options.addOption(Option.builder().longOpt("modefallback").desc("Impute genotypes that cannot be imputed due to not enough known genotypes using mode imputation rather than setting them to 0").build());
         
         options.addOption(Option.builder().longOpt("verbose").desc("Display detailed run information").build());
         
@@ -142,11 +166,21 @@ public class LinkImpute
                 if (commands.hasOption("knni") || commands.hasOption("mode"))
                 {
                     if (commands.hasOption("ldnum") || commands.hasOption("ldin")
-                            || commands.hasOption("ldout") || commands.hasOption("ldonly"))
+                            || commands.hasOption("ldout") || commands.hasOption("ldonly")
+                            || commands.hasOption("ldwindow") || commands.hasOption("ldwindowsnps")
+                            || commands.hasOption("ldmap") || commands.hasOption("ldsample")
+                            || commands.hasOption("ldcandidates") || commands.hasOption("ldrecall")
+                            || commands.hasOption("ldtemp") || commands.hasOption("ldem")
+                            || commands.hasOption("ldbinary"))
                     {
                         System.out.println("LD options can only be used with LD-kNNi");
                         help = true;
                     }
+                    if (commands.hasOption("prune"))
+                    {
+                        System.out.println("prune option can only be used with LD-kNNi");
+                        help = true;
+                    }
                 }                               
                 else
                 {
@@ -157,6 +191,26 @@ public class LinkImpute
                             System.out.println("ldnum and ldin options cannot be used together");
                             help = true;
                         }
+                        else if (commands.hasOption("ldwindow") || commands.hasOption("ldwindowsnps"))
+                        {
+                            System.out.println("ldwindow options and ldin cannot be used together");
+                            help = true;
+                        }
+                        else if (commands.hasOption("ldsample"))
+                        {
+                            System.out.println("ldsample and ldin options cannot be used together");
+                            help = true;
+                        }
+                        else if (commands.hasOption("ldtemp"))
+                        {
+                            System.out.println("ldtemp and ldin options cannot be used together");
+                            help = true;
+                        }
+                        else if (commands.hasOption("ldem"))
+                        {
+                            System.out.println("ldem and ldin options cannot be used together");
+                            help = true;
+                        }
                         else
                         {
                             File f = new File(commands.getOptionValue("ldin"));
@@ -167,6 +221,68 @@ public class LinkImpute
                             }
                         }
                     }
+                    if (commands.hasOption("ldwindow") && !(commands.hasOption("v") || commands.hasOption("ldmap")))
+                    {
+                        System.out.println("ldwindow option needs snp positions from either a VCF file"
+                                + " or the ldmap option");
+                        help = true;
+                    }
+                    if (commands.hasOption("ldbinary") && !commands.hasOption("ldout"))
+                    {
+                        System.out.println("ldbinary option can only be used with ldout");
+                        help = true;
+                    }
+                    if (commands.hasOption("ldtemp") && (commands.hasOption("ldwindow")
+                            || commands.hasOption("ldwindowsnps") || commands.hasOption("ldsample")))
+                    {
+                        System.out.println("ldtemp option cannot be used with ldwindow or ldsample options");
+                        help = true;
+                    }
+                    if ((commands.hasOption("ldcandidates") || commands.hasOption("ldrecall"))
+                            && !commands.hasOption("ldsample"))
+                    {
+                        System.out.println("ldcandidates and ldrecall options can only be used with ldsample");
+                        help = true;
+                    }
+                    if (commands.hasOption("ldmap"))
+                    {
+                        File f = new File(commands.getOptionValue("ldmap"));
+                        if (!f.canRead())
+                        {
+                            System.out.println("Cannot read ldmap file");
+                            help = true;
+                        }
+                    }
+                }
+                
+                if (commands.hasOption("weightin") || commands.hasOption("weightout")
+                        || commands.hasOption("nearest"))
+                {
+                    if (!commands.hasOption("knni"))
+                    {
+                        System.out.println("Weight options can only be used with kNNi");
+                        help = true;
+                    }
+                    else if (commands.hasOption("nearest") &&
+                            (commands.hasOption("weightin") || commands.hasOption("weightout")))
+                    {
+                        System.out.println("nearest option cannot be used with weightin or weightout");
+                        help = true;
+                    }
+                    else if (commands.hasOption("weightin") && commands.hasOption("weightout"))
+                    {
+                        System.out.println("weightin and weightout options cannot be used together");
+                        help = true;
+                    }
+                    else if (commands.hasOption("weightin"))
+                    {
+                        File f = new File(commands.getOptionValue("weightin"));
+                        if (!f.canRead())
+                        {
+                            System.out.println("Cannot read weightin file");
+                            help = true;
+                        }
+                    }
                 }
                 
                 if (commands.hasOption("fixedl") && 
@@ -191,7 +307,19 @@ public class LinkImpute
                 help = badNumeric(commands,"ldnum") | help;
                 help = badNumeric(commands,"fixedk") | help;
                 help = badNumeric(commands,"fixedl") | help;
-                help = badNumeric(commands,"nummask") | help;                
+                help = badNumeric(commands,"nummask") | help;
+                help = badNumeric(commands,"ldwindow") | help;
+                help = badNumeric(commands,"ldwindowsnps") | help;
+                help = badNumeric(commands,"ldsample") | help;
+                help = badNumeric(commands,"ldcandidates") | help;
+                help = badNumeric(commands,"nearest") | help;
+                if (!help && commands.hasOption("nearest") && commands.hasOption("fixedk")
+                        && (Integer.parseInt(commands.getOptionValue("fixedk")) >
+                        Integer.parseInt(commands.getOptionValue("nearest"))))
+                {
+                    System.out.println("fixedk cannot be more than nearest");
+                    help = true;
+                }
             }
             
             if (help)
@@ -224,10 +352,6 @@ public class LinkImpute
             System.out.println("Problem reading / writing a file:");
             System.out.println(ex.getMessage());
         }
-        catch (NotEnoughGenotypesException ex)
-        {
-            System.out.println(ex.getMessage());
-        }
     }
     
     private static boolean badNumeric(CommandLine commands, String option)
@@ -260,19 +384,25 @@ public class LinkImpute
         HelpFormatter formatter = new HelpFormatter();
         formatter.setLongOptSeparator("=");
         String[] order = {"p", "q", "a", "v", "knni", "mode", "verbose","fixedk", "fixedl",
-            "ldin","ldout","ldnum","ldonly","nummask","version","help"};
+            "ldin","ldout","ldbinary","ldnum","ldonly","ldwindow","ldwindowsnps","ldmap",
+            "ldsample","ldcandidates","ldrecall","ldtemp","ldem",
+            "weightin","weightout","nearest","nummask","prune","modefallback","version","help"};
         formatter.setOptionComparator(new OptionOrder(order));
         formatter.printHelp("LinkImpute [-p | -q | -a | -v] [--mode | --knni] \n" +
         "       [--fixedk=<arg>] [--fixedl=<arg>] \n" +
-        "       [--ldout=<arg>] [--ldnum=<arg>] [--ldin=<arg>] [--ldonly]\n" +
-        "       [--nummask=<arg]\n" +
+        "       [--ldout=<arg>] [--ldbinary] [--ldnum=<arg>] [--ldin=<arg>] [--ldonly]\n" +
+        "       [--ldwindow=<arg>] [--ldwindowsnps=<arg>] [--ldmap=<arg>]\n" +
+        "       [--ldsample=<arg>] [--ldcandidates=<arg>] [--ldrecall]\n" +
+        "       [--ldtemp=<arg>] [--ldem]\n" +
+        "       [--weightin=<arg>] [--weightout=<arg>] [--nearest=<arg>]\n" +
+        "       [--nummask=<arg] [--prune] [--modefallback]\n" +
         "       INFILE OUTFILE", 
                 "\nImputes any missing values in the input file\n\n", options,
                 "\nOutput file will be in the same format as the input and will be indentical "
                         + "except for missing values being replaced by imputed values.");
     }
     
-    private static void run(CommandLine commands) throws IOException, DataException, NotEnoughGenotypesException, OptimizeException
+    private static void run(CommandLine commands) throws IOException, DataException, OptimizeException
     {
         long start = System.currentTimeMillis();
         FileFormat fileFormat = FileFormat.RAW;
@@ -316,22 +446,18 @@ public class LinkImpute
         {
             case VCF:
                 vcf = new VCF(new File(in));
-                FormatDefinition gtF = vcf.getMeta().getFormatDefintion("GT");
-                original = vcf.getData().asByteArray(gtF, new GenoToByte());                
                 break;
             case ARRAY:
-                original = readArray(new File(in));
                 break;
             case PED:
                 pp = new PlinkPed(new File(in));
-                original = pp.asArray();
                 break;
             case RAW:
             default:
                 pn = new PlinkNumeric(new File(in));
-                original = pn.asArray();
                 break;
         }
+        original = genotypes(fileFormat, in, vcf, pp, pn);
 
         System.out.println("\tRead in data set of " + original.length + " samples and " +
             original[0].length + " SNPs.");
@@ -345,8 +471,16 @@ public class LinkImpute
             System.out.println("Finished reading in data set.");
         }
         
-        Correlation corr = new Pearson();
-        Map<Integer,List<Integer>> ld = null;
+        Correlation corr;
+        if (commands.hasOption("ldem"))
+        {
+            corr = new EM();
+        }
+        else
+        {
+            corr = new Pearson();
+        }
+        LDIndex ld = null;
         if (method == Method.LDKNNI)
         {
             if (!commands.hasOption("ldin"))
@@ -354,7 +488,81 @@ public class LinkImpute
                 System.out.println("Starting calculating correlations...");
                 partstart = System.currentTimeMillis();
                 int number = Integer.parseInt(commands.getOptionValue("ldnum", "65"));
-                ld = corr.topn(transpose(original), number);
+                if (commands.hasOption("ldtemp"))
+                {
+                    String prefix = commands.getOptionValue("ldtemp");
+                    File genotypes = new File(prefix + ".geno");
+                    File checkpoint = new File(prefix + ".ckpt");
+                    MappedGenotypes.write(original, genotypes);
+                    // The calculation only needs the packed genotypes on disk
+                    // so don't hold the data set while it runs.  It's got
+                    // again afterwards if it's needed for imputation.
+                    original = null;
+                    ld = corr.topn(new MappedGenotypes(genotypes), number, checkpoint);
+                    genotypes.delete();
+                    checkpoint.delete();
+                    if (!commands.hasOption("noimpute"))
+                    {
+                        original = genotypes(fileFormat, in, vcf, pp, pn);
+                    }
+                }
+                else
+                {
+                    PackedGenotypes packed = PackedGenotypes.transposed(original);
+                    Window window = null;
+                    if (commands.hasOption("ldwindow") || commands.hasOption("ldwindowsnps"))
+                    {
+                        long bp = Long.parseLong(commands.getOptionValue("ldwindow", "0"));
+                        int snps = Integer.parseInt(commands.getOptionValue("ldwindowsnps", "0"));
+                        if (commands.hasOption("ldmap"))
+                        {
+                            window = readMap(new File(commands.getOptionValue("ldmap")), original[0].length, bp, snps);
+                        }
+                        else if (fileFormat == FileFormat.VCF)
+                        {
+                            window = vcfWindow(vcf, bp, snps);
+                        }
+                        else
+                        {
+                            window = new Window(original[0].length, snps);
+                        }
+                    }
+                    if (commands.hasOption("ldsample"))
+                    {
+                        int samples = Integer.parseInt(commands.getOptionValue("ldsample"));
+                        int candidates = Integer.parseInt(commands.getOptionValue("ldcandidates",
+                                Integer.toString(4 * number)));
+                        if (window == null)
+                        {
+                            ld = corr.topnApprox(packed, number, samples, candidates);
+                        }
+                        else
+                        {
+                            ld = corr.topnApprox(packed, number, window, samples, candidates);
+                        }
+                        if (commands.hasOption("ldrecall"))
+                        {
+                            LDIndex exact;
+                            if (window == null)
+                            {
+                                exact = corr.topn(packed, number);
+                            }
+                            else
+                            {
+                                exact = corr.topn(packed, number, window);
+                            }
+                            System.out.println("\tRecall:\t" + Correlation.recall(exact, ld));
+                        }
+                    }
+                    else if (window == null)
+                    {
+                        ld = corr.topn(packed, number);
+                    }
+                    else
+                    {
+                        ld = corr.topn(packed, number, window);
+                    }
+                }
                 if (verbose)
                 {
                     long time = (System.currentTimeMillis() - partstart) / 1000;
@@ -367,11 +575,26 @@ public class LinkImpute
             }
             else
             {
-                ld = readLD(new File(commands.getOptionValue("ldin")));
+                File ldin = new File(commands.getOptionValue("ldin"));
+                if (LDIndex.isBinary(ldin))
+                {
+                    ld = LDIndex.read(ldin);
+                }
+                else
+                {
+                    ld = readLD(ldin);
+                }
             }
             if (commands.hasOption("ldout"))
             {
-                writeLD(new File(commands.getOptionValue("ldout")),ld);
+                if (commands.hasOption("ldbinary"))
+                {
+                    ld.write(new File(commands.getOptionValue("ldout")));
+                }
+                else
+                {
+                    writeLD(new File(commands.getOptionValue("ldout")),ld);
+                }
             }
         }
         
@@ -379,6 +602,10 @@ public class LinkImpute
         {
             int nummask = Integer.parseInt(commands.getOptionValue("nummask", "10000"));
             Mask mask = new Mask(original,nummask);
+            MissingIndex missing = new MissingIndex(original);
+            Knni.setModeFallback(commands.hasOption("modefallback"));
+            KnniLD.setModeFallback(commands.hasOption("modefallback"));
+            KnniLD.setPrune(commands.hasOption("prune"));
             
             byte[][] imputed;
             switch (method)
@@ -401,7 +628,7 @@ public class LinkImpute
 
                     System.out.println("Starting imputation...");
                     partstart = System.currentTimeMillis();
-                    imputed = mode.compute(original);
+                    imputed = mode.compute(original, missing);
                     if (verbose)
                     {
                         long time = (System.currentTimeMillis() - partstart) / 1000;
@@ -413,7 +640,36 @@ public class LinkImpute
                     }
                     break;
                 case KNNI:
-                    double[][] weight = Knni.weight(original);
+                    // Either the weights between every pair of samples or
+                    // just the nearest samples to each sample are used
+                    SampleWeights weight = null;
+                    NearestSamples near = null;
+                    int kbound = original.length;
+                    if (commands.hasOption("nearest"))
+                    {
+                        kbound = Math.min(kbound, Integer.parseInt(commands.getOptionValue("nearest")));
+                        near = new NearestSamples(original, NearestSamples.top(kbound, missing));
+                    }
+                    else if (commands.hasOption("weightin"))
+                    {
+                        weight = SampleWeights.read(new File(commands.getOptionValue("weightin")));
+                        if (weight.size() != original.length)
+                        {
+                            throw new IOException("weightin file is for " + weight.size()
+                                    + " samples but the data set has " + original.length);
+                        }
+                    }
+                    else if (commands.hasOption("weightout"))
+                    {
+                        weight = SampleWeights.create(new File(commands.getOptionValue("weightout")),
+                                original.length);
+                        Knni.weight(original, weight);
+                        weight.complete();
+                    }
+                    else
+                    {
+                        weight = Knni.weight(original);
+                    }
                     int k;
                     if (commands.hasOption("fixedk"))
                     {
@@ -422,7 +678,9 @@ public class LinkImpute
                         partstart = System.currentTimeMillis();                  
 
                         Knni knni = new Knni(k);
-                        System.out.println("\tAccuracy:\t" + knni.fastAccuracy(original, mask, weight));
+                        System.out.println("\tAccuracy:\t" + ((near == null) ?
+                                knni.fastAccuracy(original, mask, weight) :
+                                knni.fastAccuracy(original, mask, near)));
                         
                         if (verbose)
                         {
@@ -438,9 +696,11 @@ public class LinkImpute
                     {                        
                         System.out.println("Starting optimizing parameters...");
                         partstart = System.currentTimeMillis();
-                        KnniOpt knniopt = new KnniOpt(original,mask,weight,verbose);
-                        int[] startmax = {9};
-                        int[] absmax = {original.length};
+                        KnniOpt knniopt = (near == null) ?
+                                new KnniOpt(original,mask,weight,verbose) :
+                                new KnniOpt(original,mask,near,verbose);
+                        int[] startmax = {Math.min(9, kbound)};
+                        int[] absmax = {kbound};
                         Optimize ok = new Optimize(knniopt,startmax,absmax);
                         if (!verbose)
                         {
@@ -464,7 +724,9 @@ public class LinkImpute
                     System.out.println("Starting imputation...");
                     partstart = System.currentTimeMillis();
                     Knni knni = new Knni(k);
-                    imputed = knni.compute(original,weight);
+                    imputed = (near == null) ?
+                            knni.compute(original,weight,missing) :
+                            knni.compute(original,near,missing);
                     if (verbose)
                     {
                         long time = (System.currentTimeMillis() - partstart) / 1000;
@@ -478,6 +740,9 @@ public class LinkImpute
                 case LDKNNI:
                 default:
                     int l;
+                    // Shared between accuracy estimation / optimization and
+                    // imputation so neighbour blocks are only built once
+                    NeighbourBlocks blocks = new NeighbourBlocks(original,ld);
                     if (commands.hasOption("fixedk"))
                     {
                         k = Integer.parseInt(commands.getOptionValue("fixedk"));
@@ -485,7 +750,7 @@ public class LinkImpute
                         System.out.println("Estimating accuracy...");
                         partstart = System.currentTimeMillis();                  
 
-                        KnniLD knnild = new KnniLD(ld,k,l);
+                        KnniLD knnild = new KnniLD(ld,k,l,blocks);
                         System.out.println("\tAccuracy:\t" + knnild.fastAccuracy(original, mask));
                         
                         if (verbose)
@@ -502,9 +767,11 @@ public class LinkImpute
                     {
                         System.out.println("Starting optimizing parameters...");
                         partstart = System.currentTimeMillis();
-                        KnniLDOpt knnildopt = new KnniLDOpt(original,mask,ld,verbose);
+                        KnniLDOpt knnildopt = new KnniLDOpt(original,mask,ld,blocks,verbose);
                         int[] startmaxld = {9,17};
-                        int[] absmaxld = {original.length,ld.get(0).size()};
+                        // Lists can be of different lengths if LD was calculated
+                        // within a window
+                        int[] absmaxld = {original.length,ld.maxCount()};
                         Optimize ol = new Optimize(knnildopt,startmaxld,absmaxld);
                         if (!verbose)
                         {
@@ -529,8 +796,13 @@ public class LinkImpute
 
                     System.out.println("Starting imputation...");
                     partstart = System.currentTimeMillis();
-                    KnniLD knnild = new KnniLD(ld,k,l);
-                    imputed = knnild.compute(original);
+                    KnniLD knnild = new KnniLD(ld,k,l,blocks);
+                    imputed = knnild.compute(original,missing);
+                    if (verbose && commands.hasOption("prune"))
+                    {
+                        System.out.println("\tAbandoned " + knnild.getPruned() + " of " +
+                                knnild.getDistances() + " sample distances early.");
+                    }
                     if (verbose)
                     {
                         long time = (System.currentTimeMillis() - partstart) / 1000;
@@ -583,6 +855,27 @@ public class LinkImpute
         System.out.println();
     }
     
+    // The genotypes of the data set, indexed by sample and then SNP.  For
+    // array files the file is read, for other formats they come from the
+    // already read file.
+    private static byte[][] genotypes(FileFormat fileFormat, String in, VCF vcf,
+            PlinkPed pp, PlinkNumeric pn) throws IOException, DataException
+    {
+        switch (fileFormat)
+        {
+            case VCF:
+                FormatDefinition gtF = vcf.getMeta().getFormatDefintion("GT");
+                return vcf.getData().asByteArray(gtF, new GenoToByte());
+            case ARRAY:
+                return readArray(new File(in));
+            case PED:
+                return pp.asArray();
+            case RAW:
+            default:
+                return pn.asArray();
+        }
+    }
+    
     private static byte[][] transpose(byte[][] o)
     {
         byte[][] n = new byte[o[0].length][o.length];
@@ -750,40 +1043,116 @@ public class LinkImpute
         out.close();
     }
     
-    private static void writeLD(File f, Map<Integer,List<Integer>> data) throws IOException
+    private static Window readMap(File f, int numSNPs, long bp, int snps) throws IOException, DataException
+    {
+        // Both the plink map and bim formats have the chromosome in the first
+        // column and the base pair position in the fourth
+        BufferedReader in = new BufferedReader(new FileReader(f));
+        List<String> chrom = new ArrayList<>();
+        List<Long> pos = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+            // Blank lines, such as any at the end of the file, are skipped
+            if (line.trim().isEmpty())
+            {
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4)
+            {
+                in.close();
+                throw new InvalidPositionException(line);
+            }
+            chrom.add(parts[0]);
+            try
+            {
+                pos.add(Long.valueOf(parts[3]));
+            }
+            catch (NumberFormatException ex)
+            {
+                in.close();
+                throw new InvalidPositionException(parts[3]);
+            }
+        }
+        in.close();
+        
+        if (chrom.size() != numSNPs)
+        {
+            throw new InvalidPositionException(chrom.size(), numSNPs);
+        }
+        
+        String[] c = new String[numSNPs];
+        long[] p = new long[numSNPs];
+        for (int i = 0; i < numSNPs; i++)
+        {
+            c[i] = chrom.get(i);
+            p[i] = pos.get(i);
+        }
+        return new Window(c, p, bp, snps);
+    }
+    
+    private static Window vcfWindow(VCF vcf, long bp, int snps) throws DataException
+    {
+        List<Position> positions = vcf.getData().getPositions();
+        String[] c = new String[positions.size()];
+        long[] p = new long[positions.size()];
+        int i = 0;
+        for (Position pos: positions)
+        {
+            c[i] = pos.getChrom();
+            try
+            {
+                p[i] = Long.parseLong(pos.getPosition());
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new InvalidPositionException(pos.getPosition());
+            }
+            i++;
+        }
+        return new Window(c, p, bp, snps);
+    }
+    
+    private static void writeLD(File f, LDIndex data) throws IOException
     {
         PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(f)));
         
-        for (Entry<Integer,List<Integer>> d: data.entrySet())
+        for (int snp = 0; snp < data.size(); snp++)
         {
-            out.print(d.getKey());
-            for (Integer i: d.getValue())
+            out.print(snp);
+            for (int i = 0; i < data.count(snp); i++)
             {
                 out.print("\t");
-                out.print(i);
+                out.print(data.neighbour(snp, i));
             }
             out.println();
         }
         out.close();
     }
     
-    private static Map<Integer,List<Integer>> readLD(File f) throws IOException
+    private static LDIndex readLD(File f) throws IOException
     {
         BufferedReader in = new BufferedReader(new FileReader(f));
         String line;
-        Map<Integer,List<Integer>> data = new HashMap<>();
+        Map<Integer,int[]> data = new HashMap<>();
         while ((line = in.readLine()) != null)
         {
             String[] parts = line.split("\t");
-            List<Integer> set = new ArrayList<>();
+            int[] set = new int[parts.length - 1];
             for (int i = 1; i < parts.length; i++)
             {
-                set.add(Integer.valueOf(parts[i]));
+                set[i - 1] = Integer.parseInt(parts[i]);
             }
             data.put(Integer.valueOf(parts[0]),set);
         }
         in.close();
-        return data;
+        int[][] neighbours = new int[data.size()][];
+        for (Entry<Integer,int[]> e: data.entrySet())
+        {
+            neighbours[e.getKey()] = e.getValue();
+        }
+        return new LDIndex(neighbours);
     }
     
     private static class OptionOrder implements Comparator<Option>
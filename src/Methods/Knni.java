@@ -17,17 +17,19 @@
 
 package Methods;
 
-import Exceptions.NotEnoughGenotypesException;
 import Exceptions.WrongNumberOfSNPsException;
 import Mask.Mask;
+import Utils.MissingIndex;
+import Utils.PackedGenotypes;
+import Utils.SampleWeights;
+import Utils.Progress;
+import Utils.SilentProgress;
 import Utils.SortByIndexDouble;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import Utils.TextProgress;
+import Utils.TileScheduler;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Class to perform standard kNNi imputation
@@ -56,13 +58,11 @@ public class Knni
     /**
      * Impute missing data
      * @param original The original data set.  Missing data is coded as -1
-     * @throws NotEnoughGenotypesException If there is not enough known genotypes for
-     * imputation
      * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
      * every sample
      * @return The imputed data set.
      */
-    public byte[][] compute(byte[][] original) throws NotEnoughGenotypesException, WrongNumberOfSNPsException
+    public byte[][] compute(byte[][] original) throws WrongNumberOfSNPsException
     {
         return compute(original, weight(original));
     }
@@ -74,80 +74,108 @@ public class Knni
      * Impute missing data
      * @param original The original data set.  Missing data is coded as -1
      * @param d Distance matrix giving the distance between samples
-     * @throws NotEnoughGenotypesException If there is not enough known genotypes for
-     * imputation
      * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
      * every sample
      * @return The imputed data set.
      */
-    public byte[][] compute(byte[][] original, double[][] d) throws WrongNumberOfSNPsException
+    public byte[][] compute(byte[][] original, SampleWeights d) throws WrongNumberOfSNPsException
+    {
+        return compute(original, d, new MissingIndex(original));
+    }
+    
+    /**
+     * Impute missing data
+     * @param original The original data set.  Missing data is coded as -1
+     * @param d Distance matrix giving the distance between samples
+     * @param missing Index of the missing genotypes in the original data set
+     * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
+     * every sample
+     * @return The imputed data set.
+     */
+    public byte[][] compute(byte[][] original, SampleWeights d, MissingIndex missing) throws WrongNumberOfSNPsException
+    {
+        return compute(original, d, null, missing);
+    }
+    
+    /**
+     * Impute missing data using only the nearest samples to each sample,
+     * falling back to every sample where the nearest run out of known
+     * genotypes.  Gives the same result as using the full distance matrix.
+     * @param original The original data set.  Missing data is coded as -1
+     * @param near The nearest samples to each sample
+     * @param missing Index of the missing genotypes in the original data set
+     * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
+     * every sample
+     * @return The imputed data set.
+     */
+    public byte[][] compute(byte[][] original, NearestSamples near, MissingIndex missing) throws WrongNumberOfSNPsException
+    {
+        return compute(original, null, near, missing);
+    }
+    
+    // Only one of d and near is used, the other is null
+    private byte[][] compute(byte[][] original, SampleWeights d, NearestSamples near, MissingIndex missing)
     {
         // NEED SOME PROPER ERROR CHECKING HERE, IN CASE THE NUMBER OF SAMPLES IN
         // ORIGINAL AND D DISAGREE
 
-        Set<Integer> notImputed = new TreeSet<>();
-
-        byte[][] imputed = new byte[original.length][];
+        // Known genotypes are copied as is so only the missing ones need
+        // visiting
+        byte[][] imputed = MissingIndex.copy(original);
+        int[] offsets = missing.getSampleOffsets();
+        int[] snps = missing.getSnps();
         
+        // Samples are imputed in parallel, split into ranges with about the
+        // same number of missing genotypes
+        int[] number = new int[original.length];
         for (int s = 0; s < original.length; s++)
         {
-            // Get a list of indicies to other samples in order from closest to
-            // furthest from the current sample
-            SortByIndexDouble si = new SortByIndexDouble(d[s],true);
-            Integer[] indicies = si.sort();
-            
-            // Loop over snps.  If the genotypes is known simply copy to new array,
-            // else impute
-            imputed[s] = new byte[original[s].length];
-            for (int p = 0; p < original[s].length; p++)
+            number[s] = missing.sampleCount(s);
+        }
+        long[] cost = KnniLD.cost(number);
+        KnniLD.POOL.invoke(new Part(original, imputed, d, near, missing, cost, 0, original.length,
+                KnniLD.grain(cost)));
+        
+        // Genotypes that could not be imputed are counted, and either imputed
+        // with the mode or set to 0 as they always have been, afterwards so
+        // threads don't share counts and the result doesn't depend on thread
+        // timings.
+        failures = new int[missing.snps()];
+        byte[] fallback = fallback(missing.snps());
+        for (int s = 0; s < original.length; s++)
+        {
+            for (int i = offsets[s]; i < offsets[s + 1]; i++)
             {
-                if (original[s][p] >= 0)
-                {
-                    imputed[s][p] = original[s][p];
-                }
-                else
+                int p = snps[i];
+                if (imputed[s][p] < 0)
                 {
-                    try
+                    failures[p]++;
+                    if (MODE_FALLBACK)
                     {
-                        imputed[s][p] = impute(p, original, indicies, d[s]);
+                        imputed[s][p] = fallback(fallback, original, p);
                     }
-                    catch (NotEnoughGenotypesException ex)
+                    else
                     {
-                        notImputed.add(p);
+                        imputed[s][p] = 0;
                     }
                 }
             }
         }
 
-        if (notImputed.size() > 0)
-        {
-            System.err.println();
-            System.err.println("WARNING: Unable to impute genotypes forthe following SNPs");
-            System.err.println("due to not enough known genotypes for these SNPs:");
-            boolean first = true;
-            for (Integer i: notImputed)
-            {
-                if (!first)
-                {
-                    System.err.println("\t");
-                }
-                first = false;
-                System.err.print(i);
-            }
-            System.err.println();
-            System.err.println();
-        }
+        warn(failures, MODE_FALLBACK);
        
         return imputed;
     }
     
-    private byte impute(int p, byte[][] original, Integer[] indicies, double[] dist) throws NotEnoughGenotypesException
+    // Returns -1 if there are not k samples with a known genotype to impute
+    // from among the first n in indicies
+    private byte impute(int p, byte[][] original, int[] indicies, int n, double[] dist, double[] w)
     {
         int f = 0;
         int i = 0;
         
         // Store the weights applicable to each of the three genotypes
-        double[] w = new double[3];
+        Arrays.fill(w, 0.0);
         //Loop around samples in order of distance
         do
         {
@@ -165,15 +193,20 @@ public class Knni
             i++;
         }
         // While we haven't seen enough known genotypes and there's still samples left
-        while ((f < k) && (i < indicies.length));
+        while ((f < k) && (i < n));
         
         if (f < k)
         {
-            //Throw an error - we don't have k samples with values to impute from
-            throw new NotEnoughGenotypesException(p,k);
+            // We don't have k samples with values to impute from
+            return -1;
         }
         
-        // Return the genotype with most weight
+        return vote(w);
+    }
+    
+    // Returns the genotype with most weight
+    static byte vote(double[] w)
+    {
         if ((w[0] >= w[1]) && (w[0] >= w[2]))
         {
             return 0;
@@ -191,8 +224,6 @@ public class Knni
      * @param original The original genotype values
      * @param mask A mask
      * @return The percentage of genotypes imputed correctly
-     * @throws Exceptions.NotEnoughGenotypesException Thrown if there are not k
-     * known genotypes avaliable for a SNP
      */  
     public double fastAccuracy(byte[][] original, Mask mask)
     {
@@ -206,143 +237,560 @@ public class Knni
      * @param mask A mask
      * @param d Distance matrix giving the distance between samples
      * @return The percentage of genotypes imputed correctly
-     * @throws Exceptions.NotEnoughGenotypesException Thrown if there are not k
-     * known genotypes avaliable for a SNP
      */  
-    public double fastAccuracy(byte[][] original, Mask mask, double[][] d)
+    public double fastAccuracy(byte[][] original, Mask mask, SampleWeights d)
+    {
+        return fastAccuracies(original, mask, d)[k];
+    }
+    
+    /**
+     * Performs a fast accuracy calculation - only imputes those genotypes that
+     * were masked rather than all missing genotypes.
+     * @param original The original genotype values
+     * @param mask A mask
+     * @param near The nearest samples to each sample
+     * @return The percentage of genotypes imputed correctly
+     */  
+    public double fastAccuracy(byte[][] original, Mask mask, NearestSamples near)
+    {
+        return fastAccuracies(original, mask, near)[k];
+    }
+    
+    /**
+     * Performs a fast accuracy calculation for every value of k up to the
+     * value of k of this object in a single pass.  As the order of the
+     * closest samples does not depend on k, they are sorted once for each
+     * sample and walked through once for each masked genotype, with the
+     * imputed genotype worked out after each sample with a known genotype is
+     * added.  Each order is only held while its sample is being evaluated, so
+     * no order of every sample for every sample is kept.  Samples are
+     * evaluated in parallel.
+     * @param original The original genotype values
+     * @param mask A mask
+     * @param d Distance matrix giving the distance between samples
+     * @return Array of length k + 1 where entry i is the percentage of
+     * genotypes imputed correctly with k = i.  Entry 0 is unused.
+     */
+    public double[] fastAccuracies(byte[][] original, Mask mask, SampleWeights d)
+    {
+        return fastAccuracies(original, mask, d, null);
+    }
+    
+    /**
+     * Performs a fast accuracy calculation for every value of k up to the
+     * value of k of this object using only the nearest samples to each
+     * sample, falling back to every sample where the nearest run out of known
+     * genotypes.  Gives the same result as using the full distance matrix.
+     * @param original The original genotype values
+     * @param mask A mask
+     * @param near The nearest samples to each sample
+     * @return Array of length k + 1 where entry i is the percentage of
+     * genotypes imputed correctly with k = i.  Entry 0 is unused.
+     */
+    public double[] fastAccuracies(byte[][] original, Mask mask, NearestSamples near)
+    {
+        return fastAccuracies(original, mask, null, near);
+    }
+    
+    // Only one of d and near is used, the other is null
+    private double[] fastAccuracies(byte[][] original, Mask mask, SampleWeights d, NearestSamples near)
     {
         boolean[][] maskA = mask.getArray();
-        int correct = 0;
-        int total = 0;        
+        long[] cost = KnniLD.cost(masked(maskA));
+        int[][] c = KnniLD.POOL.invoke(new FastPart(original, maskA, d, near,
+                fallback(original[0].length), cost, 0, maskA.length, KnniLD.grain(cost)));
+        int[] correct = c[0];
+        int[] other = c[1];
+        int total = c[2][0];
         
+        double[] accuracy = new double[k + 1];
+        int o = 0;
+        for (int i = 1; i <= k; i++)
+        {
+            o += other[i];
+            accuracy[i] = (double) (correct[i] + o) / (double) total;
+        }
+        return accuracy;
+    }
+    
+    // Number of masked genotypes of each sample
+    private static int[] masked(boolean[][] maskA)
+    {
+        int[] masked = new int[maskA.length];
         for (int i = 0; i < maskA.length; i++)
         {
-            boolean[] m = maskA[i];
-            for (int j = 0; j < m.length; j++)
+            for (boolean b: maskA[i])
             {
-                if (m[j])
+                if (b)
                 {
-                    SortByIndexDouble si = new SortByIndexDouble(d[i],true);
-                    Integer[] indicies = si.sort();
-
-                    try
-                    {
-                        byte imputed = impute(j, original, indicies, d[i]);
-                        if (imputed == original[i][j])
-                        {
-                            correct++;
-                        }
-                    }
-                    catch (NotEnoughGenotypesException ex)
+                    masked[i]++;
+                }
+            }
+        }
+        return masked;
+    }
+    
+    /**
+     * Returns the number of genotypes at each SNP that could not be imputed
+     * by kNNi in the last call to compute because there were not k samples
+     * with a known genotype.  If falling back to mode imputation these
+     * genotypes will have been imputed by that instead.
+     * @return The number of genotypes not imputed at each SNP
+     */
+    public int[] getFailures()
+    {
+        return failures;
+    }
+    
+    /**
+     * Sets whether genotypes that cannot be imputed because there are not k
+     * samples with a known genotype are imputed with the mode instead.
+     * Otherwise they are set to 0.  Defaults to false.
+     * @param fallback Whether to fall back to mode imputation
+     */
+    public static void setModeFallback(boolean fallback)
+    {
+        MODE_FALLBACK = fallback;
+    }
+    
+    // Modal genotype of each snp, worked out when first needed.  -1 for not
+    // yet worked out.
+    static byte[] fallback(int snps)
+    {
+        byte[] fallback = new byte[snps];
+        Arrays.fill(fallback, (byte) -1);
+        return fallback;
+    }
+    
+    static byte fallback(byte[] fallback, byte[][] original, int p)
+    {
+        if (fallback[p] < 0)
+        {
+            fallback[p] = Mode.impute(original, p);
+        }
+        return fallback[p];
+    }
+    
+    // Warns about snps where some genotypes could not be imputed
+    static void warn(int[] failures, boolean fallback)
+    {
+        boolean any = false;
+        for (int f: failures)
+        {
+            any |= (f > 0);
+        }
+        if (any)
+        {
+            System.err.println();
+            System.err.println("WARNING: Unable to impute genotypes forthe following SNPs");
+            System.err.println("due to not enough known genotypes for these SNPs:");
+            boolean first = true;
+            for (int i = 0; i < failures.length; i++)
+            {
+                if (failures[i] > 0)
+                {
+                    if (!first)
                     {
-                        // Doing nothing here makes a certain amount of sense.  If we can't impute it then by definition
-                        // we've imputed it incorrectly.  Throwing an error probably doesn't make sense as we may have an
-                        // higher accuracy with this value of k even if some SNPs can't be imputed.  If we end up using
-                        // this value of k a warning message will be displayed when imputing.  If we don't then it's
-                        // not a concern.
+                        System.err.println("\t");
                     }
-                    total++;
+                    first = false;
+                    System.err.print(i);
                 }
             }
+            System.err.println();
+            if (fallback)
+            {
+                System.err.println("These genotypes have been imputed using the mode instead.");
+            }
+            System.err.println();
         }
-        
-        return (double) correct / (double) total;
     }
     
     /**
-     * Calculates distances between samples using a scaled taxicab distances
+     * Calculates distances between samples using a scaled taxicab distances.
+     * The samples are packed into bitplanes so the distance between two
+     * samples is calculated 64 SNPs at a time with a few popcounts.
      * @param values Genotype array
      * @return Distance (between samples) array
      */
-    public static double[][] weight(byte[][] values)
+    public static SampleWeights weight(byte[][] values)
     {
-        ExecutorService es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        double[][] result = new double[values.length][values[0].length];
-        
-        List<Single> parts = new ArrayList<>();
-        for (int i = 0; i < values.length; i++)
-        {
-            parts.add(new Single(values,result,i));
-        }
-        try
+        SampleWeights result = new SampleWeights(values.length);
+        weight(values, result);
+        return result;
+    }
+    
+    /**
+     * Calculates distances between samples using a scaled taxicab distances,
+     * storing them in the given matrix.  Used to calculate distances straight
+     * into a memory mapped file.
+     * @param values Genotype array
+     * @param result Matrix to store the distances in.  Must have one row
+     * per sample.
+     */
+    public static void weight(byte[][] values, SampleWeights result)
+    {
+        Progress progress;
+        if (SILENT)
         {
-            es.invokeAll(parts);
-            es.shutdown();
+            progress = new SilentProgress();
         }
-        catch (InterruptedException ex)
+        else
         {
-            //NEED TO DEAL WITH THIS!
+            progress = new TextProgress((long) values.length * ((long) values.length - 1) / 2);
         }
-        return result;
+        
+        PackedGenotypes packed = pack(values);
+        TileScheduler scheduler = new TileScheduler(values.length,
+                TileScheduler.tileSize(packed.words() * 3 * 8));
+        scheduler.run(new Block(packed, result), progress, KnniLD.POOL);
     }
     
-    private static double sweight(byte[] v1, byte[] v2) throws WrongNumberOfSNPsException
+    static PackedGenotypes pack(byte[][] values)
     {
-        //Calculate the weight for a single pair of samples
-        if (v1.length == v2.length)
+        for (byte[] v: values)
         {
-            int d = 0;
-            int c = 0;
-            for (int i = 0; i < v1.length; i++)
+            if (v.length != values[0].length)
             {
-                int p1 = v1[i];
-                int p2 = v2[i];                
-                if ((p1 != -1) && (p2 != -1))
-                {
-                    // Count how many snps we use in the calculation for weighting
-                    // purposes
-                    c++;
-                    // Caclulate the taxicab distance
-                    d += Math.abs(p1 - p2); 
-                
-                }
+                //Shouldn't reach here if you use one of the provided data reading
+                //methods as they already test for this.  Hence why the error is
+                //currently not too informative
+                throw new Error(new WrongNumberOfSNPsException("Unknown"));
             }
-            // Return a scaled weight
-            return 1.0 / ((double) d * (double) v1.length / (double) c);
         }
-        else
+        return new PackedGenotypes(values);
+    }
+    
+    static double sweight(long[] r1, long[] r2, int snps)
+    {
+        //Calculate the weight for a single pair of samples.  Genotypes are
+        //coded as two bits, one set if the genotype is at least 1 and one set
+        //if it is 2, so the taxicab distance at a SNP is the number of those
+        //bits that differ.
+        int d = 0;
+        int c = 0;
+        for (int w = 0; w < r1.length; w += 3)
         {
-            //Shouldn't reach here if you use one of the provided data reading
-            //methods as they already test for this.  Hence why the error is
-            //currently not too informative
-            throw new WrongNumberOfSNPsException("Unknown");
-        }        
+            // Only use SNPs where both genotypes are known
+            long m = r1[w + PackedGenotypes.KNOWN] & r2[w + PackedGenotypes.KNOWN];
+            long t1 = r1[w + PackedGenotypes.TWO];
+            long t2 = r2[w + PackedGenotypes.TWO];
+            c += Long.bitCount(m);
+            d += Long.bitCount(((r1[w + PackedGenotypes.ONE] | t1) ^ (r2[w + PackedGenotypes.ONE] | t2)) & m)
+                    + Long.bitCount((t1 ^ t2) & m);
+        }
+        // Return a scaled weight
+        return 1.0 / ((double) d * (double) snps / (double) c);
     }
     
     // How many neighbours to use
     private int k;
+    private int[] failures;
     
-    private static class Single implements Callable<Void>//Runnable
+    // Working space for imputing so nothing needs allocating for each
+    // genotype.  One per thread.
+    private static class Scratch
     {
-        public Single(byte[][] data, double[][] res, int i)
+        public Scratch(int samples)
+        {
+            order = new int[samples];
+            temp = new int[samples];
+            w = new double[3];
+            dist = new double[samples];
+        }
+        
+        // Other samples in order from closest to furthest and working space
+        // for sorting them
+        private final int[] order;
+        private final int[] temp;
+        // Weights for each of the three genotypes
+        private final double[] w;
+        // Weights between the current sample and every other sample
+        private final double[] dist;
+    }
+    
+    private static class Block implements TileScheduler.Tile
+    {
+        public Block(PackedGenotypes data, SampleWeights res)
         {
             this.data = data;
             this.res = res;
-            this.i = i;
         }
         
         @Override
-        public Void call()
+        public int compute(int rstart, int rend, int cstart, int cend)
+        {
+            int done = 0;
+            for (int i = rstart; i < rend; i++)
+            {
+                long[] r = data.row(i);
+                for (int j = Math.max(i + 1, cstart); j < cend; j++)
+                {
+                    res.set(i, j, sweight(r, data.row(j), data.columns()));
+                    done++;
+                }
+            }
+            return done;
+        }
+        
+        private final PackedGenotypes data;
+        private final SampleWeights res;
+    }
+    
+    // Imputes a range of samples, splitting the range further if it is
+    // expensive enough
+    private class Part extends RecursiveAction
+    {
+        public Part(byte[][] original, byte[][] imputed, SampleWeights d, NearestSamples near,
+                MissingIndex missing, long[] cost, int start, int end, int grain)
+        {
+            this.original = original;
+            this.imputed = imputed;
+            this.d = d;
+            this.near = near;
+            this.missing = missing;
+            this.cost = cost;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+        
+        @Override
+        protected void compute()
         {
-            for (int j = i + 1; j < data.length; j++)
+            if ((end - start > 1) && (cost[end] - cost[start] > grain))
             {
-                try
+                int mid = KnniLD.split(cost, start, end);
+                invokeAll(new Part(original, imputed, d, near, missing, cost, start, mid, grain),
+                        new Part(original, imputed, d, near, missing, cost, mid, end, grain));
+                return;
+            }
+            
+            int[] offsets = missing.getSampleOffsets();
+            int[] snps = missing.getSnps();
+            Scratch scratch = null;
+            for (int s = start; s < end; s++)
+            {
+                // Samples with no missing genotypes have nothing to impute
+                if (offsets[s + 1] == offsets[s])
                 {
-                    double v = sweight(data[i], data[j]);
-                    res[i][j] = v;
-                    res[j][i] = v;
+                    continue;
                 }
-                catch (WrongNumberOfSNPsException ex)
+                if (scratch == null)
                 {
-                    //Should never get here!
+                    scratch = new Scratch(original.length);
+                }
+                
+                // Get a list of indicies to other samples in order from closest to
+                // furthest from the current sample, or just the nearest ones
+                int n;
+                if (near == null)
+                {
+                    d.row(s, scratch.dist);
+                    SortByIndexDouble.sort(scratch.dist, true, scratch.order, scratch.temp);
+                    n = original.length;
+                }
+                else
+                {
+                    n = near.nearest(s, scratch.order, scratch.dist);
+                }
+                
+                // Loop over the missing snps and impute
+                for (int i = offsets[s]; i < offsets[s + 1]; i++)
+                {
+                    int p = snps[i];
+                    byte g = impute(p, original, scratch.order, n, scratch.dist, scratch.w);
+                    // If the nearest samples ran out switch to all samples.
+                    // They start with the nearest so the result is the same
+                    // as if all samples had been used from the start.  This
+                    // sample is missing the genotype so nothing is gained
+                    // if only it was left out.
+                    if ((g < 0) && (n < original.length - 1))
+                    {
+                        near.all(s, scratch.order, scratch.temp, scratch.dist);
+                        n = original.length;
+                        g = impute(p, original, scratch.order, n, scratch.dist, scratch.w);
+                    }
+                    imputed[s][p] = g;
                 }
-
             }
-            return null;
         }
         
-        private final int i;
-        private final byte[][] data;
-        private final double[][] res;
+        private final byte[][] original;
+        private final byte[][] imputed;
+        private final SampleWeights d;
+        private final NearestSamples near;
+        private final MissingIndex missing;
+        private final long[] cost;
+        private final int start;
+        private final int end;
+        private final int grain;
+        
+        private static final long serialVersionUID = 1L;
     }
+    
+    // Calculates correct counts for the masked genotypes of a range of
+    // samples, splitting the range further if it is expensive enough.
+    // Returns the counts for the values of k a genotype was imputed for using
+    // the k closest samples, the change in counts from the smallest value of
+    // k it was imputed for some other way onwards, and the number of masked
+    // genotypes.
+    private class FastPart extends RecursiveTask<int[][]>
+    {
+        public FastPart(byte[][] original, boolean[][] mask, SampleWeights d, NearestSamples near,
+                byte[] fallback, long[] cost, int start, int end, int grain)
+        {
+            this.original = original;
+            this.mask = mask;
+            this.d = d;
+            this.near = near;
+            this.fallback = fallback;
+            this.cost = cost;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+        
+        @Override
+        protected int[][] compute()
+        {
+            if ((end - start > 1) && (cost[end] - cost[start] > grain))
+            {
+                int mid = KnniLD.split(cost, start, end);
+                FastPart right = new FastPart(original, mask, d, near, fallback, cost, mid, end, grain);
+                right.fork();
+                int[][] c = new FastPart(original, mask, d, near, fallback, cost, start, mid, grain).compute();
+                int[][] r = right.join();
+                for (int j = 0; j < c.length; j++)
+                {
+                    for (int i = 0; i < c[j].length; i++)
+                    {
+                        c[j][i] += r[j][i];
+                    }
+                }
+                return c;
+            }
+            
+            int[] correct = new int[k + 2];
+            int[] other = new int[k + 2];
+            int total = 0;
+            Scratch scratch = null;
+            
+            for (int i = start; i < end; i++)
+            {
+                boolean[] m = mask[i];
+                int[] indicies = null;
+                int n = 0;
+                boolean unpacked = false;
+                for (int j = 0; j < m.length; j++)
+                {
+                    if (m[j])
+                    {
+                        // The weights, and so the order of the other
+                        // samples, are the same for every masked genotype of
+                        // this sample
+                        if (!unpacked)
+                        {
+                            if (scratch == null)
+                            {
+                                scratch = new Scratch(original.length);
+                            }
+                            indicies = scratch.order;
+                            if (near == null)
+                            {
+                                d.row(i, scratch.dist);
+                                SortByIndexDouble.sort(scratch.dist, true, indicies, scratch.temp);
+                                n = original.length;
+                            }
+                            else
+                            {
+                                n = near.nearest(i, indicies, scratch.dist);
+                            }
+                            unpacked = true;
+                        }
+                        double[] dist = scratch.dist;
+                        double[] w = scratch.w;
+                        
+                        // As for impute but recording the imputed genotype after
+                        // each known genotype
+                        Arrays.fill(w, 0.0);
+                        int f = 0;
+                        byte imputed = -1;
+                        for (int x = 0; f < k; x++)
+                        {
+                            if (x == n)
+                            {
+                                // If the nearest samples run out carry on
+                                // through all samples, which start with the
+                                // nearest.  All samples includes this one,
+                                // last, whose genotype is known here.
+                                if (n < original.length)
+                                {
+                                    near.all(i, indicies, scratch.temp, dist);
+                                    n = original.length;
+                                }
+                                else
+                                {
+                                    break;
+                                }
+                            }
+                            byte g = original[indicies[x]][j];
+                            if (g >= 0)
+                            {
+                                // A sample at a distance of zero is imputed from
+                                // for every larger k
+                                if (dist[indicies[x]] == Double.POSITIVE_INFINITY)
+                                {
+                                    imputed = g;
+                                    break;
+                                }
+                                w[g] += dist[indicies[x]];
+                                f++;
+                                if (vote(w) == original[i][j])
+                                {
+                                    correct[f]++;
+                                }
+                            }
+                        }
+                        // If we can't impute it then by definition we've imputed it
+                        // incorrectly, unless falling back to the mode.  If we end up
+                        // using this value of k a warning message will be displayed
+                        // when imputing.  The modes are shared between threads but
+                        // any thread working one out gets the same value.
+                        if ((imputed < 0) && (f < k) && MODE_FALLBACK)
+                        {
+                            imputed = fallback(fallback, original, j);
+                        }
+                        if (imputed == original[i][j])
+                        {
+                            other[f + 1]++;
+                        }
+                        total++;
+                    }
+                }
+            }
+            
+            return new int[][] {correct, other, {total}};
+        }
+        
+        private final byte[][] original;
+        private final boolean[][] mask;
+        private final SampleWeights d;
+        private final NearestSamples near;
+        private final byte[] fallback;
+        private final long[] cost;
+        private final int start;
+        private final int end;
+        private final int grain;
+        
+        private static final long serialVersionUID = 1L;
+    }
+    
+    public static void setSilent(boolean s)
+    {
+        SILENT = s;
+    }
+    
+    private static boolean SILENT = false;
+    private static boolean MODE_FALLBACK = false;
 }
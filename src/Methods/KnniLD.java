@@ -17,22 +17,22 @@
 
 package Methods;
 
-import Exceptions.NotEnoughGenotypesException;
+import Correlation.LDIndex;
 import Exceptions.WrongNumberOfSNPsException;
 import Mask.Mask;
-import Mask.SampleSnp;
+import Utils.MissingIndex;
+import Utils.PackedGenotypes;
 import Utils.Progress;
 import Utils.SilentProgress;
 import Utils.TextProgress;
 import Utils.SortByIndexDouble;
 
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class to perform standard LD-kNNi imputation
@@ -50,48 +50,82 @@ public class KnniLD
     {
         this.k = k;
         this.l = l;
-        sim = new Integer[similar.length][];
+        int[] offsets = new int[similar.length + 1];
+        int[] ids = new int[similar.length * similar.length];
+        float[] scores = new float[similar.length * similar.length];
         //For each snp get a ranked list, by similarity, of the other snps
         for (int i = 0; i < similar.length; i++)
         {
             SortByIndexDouble si = new SortByIndexDouble(similar[i],true);
-            sim[i] = si.sort();
+            Integer[] sorted = si.sort();
+            offsets[i + 1] = offsets[i] + sorted.length;
+            for (int j = 0; j < sorted.length; j++)
+            {
+                ids[offsets[i] + j] = sorted[j];
+                scores[offsets[i] + j] = (float) similar[i][sorted[j]];
+            }
         }
+        sim = new LDIndex(offsets, ids, scores);
+        blocks = null;
     }
     
     /**
      * Creates an object to perform LD-kNNi with given values of k and l.
-     * @param topn A map from SNP to a list of most similar SNPs
+     * @param topn The most similar SNPs to each SNP
+     * @param k The value of k to be used
+     * @param l The value of l to be used
+     */
+    public KnniLD(LDIndex topn, int k, int l)
+    {
+        this(topn, k, l, null);
+    }
+    
+    /**
+     * Creates an object to perform LD-kNNi with given values of k and l,
+     * using a cache of neighbour blocks.  The cache is only used when
+     * imputing the data set it was created for.
+     * @param topn The most similar SNPs to each SNP
      * @param k The value of k to be used
      * @param l The value of l to be used
+     * @param blocks Cache of neighbour blocks.  Null for no cache.
      */
-    public KnniLD(Map<Integer,List<Integer>> topn, int k, int l)
+    public KnniLD(LDIndex topn, int k, int l, NeighbourBlocks blocks)
     {
         this.k = k;
         this.l = l;
-        sim = new Integer[topn.size()][];
-        for (Entry<Integer,List<Integer>> e: topn.entrySet())
-        {
-            Integer[] a = new Integer[e.getValue().size()];
-            sim[e.getKey()] = e.getValue().toArray(a);
-        }
+        this.blocks = blocks;
+        sim = topn;
     }
     
     /**
      * Impute missing data
      * @param original The original data set.  Missing data is coded as -1
      * @return The imputed data set
-     * @throws NotEnoughGenotypesException If there is not enough known genotypes for
      * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
      * every sample
-     * imputation
      */
-    public byte[][] compute(byte[][] original) throws NotEnoughGenotypesException, WrongNumberOfSNPsException
+    public byte[][] compute(byte[][] original) throws WrongNumberOfSNPsException
     {
-        int nt = Runtime.getRuntime().availableProcessors();
-        ExecutorService es = Executors.newFixedThreadPool(nt);
-
+        check(original);
+        return compute(original, new MissingIndex(original));
+    }
+    
+    /**
+     * Impute missing data
+     * @param original The original data set.  Missing data is coded as -1
+     * @param missing Index of the missing genotypes in the original data set
+     * @return The imputed data set
+     * @throws WrongNumberOfSNPsException If the number of SNPs is not the same for
+     * every sample
+     */
+    public byte[][] compute(byte[][] original, MissingIndex missing) throws WrongNumberOfSNPsException
+    {
+        buckets();
+        check(original);
+        pairs.reset();
+        pruned.reset();
         
+        int snps = original[0].length;
         Progress progress;
         if (SILENT)
         {
@@ -99,177 +133,427 @@ public class KnniLD
         }
         else
         {
-            progress = new TextProgress(original.length);
+            progress = new TextProgress(snps);
         }
 
-        byte[][] imputed = new byte[original.length][];
+        // Known genotypes are copied as is so only the missing ones need
+        // visiting
+        byte[][] imputed = MissingIndex.copy(original);
 
-        Set<Integer> allNotImputed = new TreeSet<>();
+        // Work through the snps, imputing every sample missing at a snp
+        // together so the genotypes at that snp's neighbours only need
+        // gathering once.  Snps are split into ranges with about the same
+        // number of missing genotypes, which run on a work stealing pool so
+        // no thread sits idle while another works through a run of snps with
+        // many missing genotypes.
+        int[] count = new int[snps];
+        for (int p = 0; p < snps; p++)
+        {
+            count[p] = missing.snpCount(p);
+        }
+        long[] cost = cost(count);
+        failures = new int[snps];
+        POOL.invoke(new Part(original, imputed, missing, failures, cost, 0, snps, grain(cost), progress));
 
-        // Loop over samples in order and then snps, imputing those genotypes that
-        // are missing
-        for (int s = 0; s < original.length; s++)
+        Knni.warn(failures, MODE_FALLBACK);
+        
+        return imputed;
+    }
+    
+    // Imputes sample s at snp p.  gather must have been called for snp p.
+    // Returns -1 if there are not k samples with a known genotype to impute
+    // from.
+    private byte impute(int s, int p, byte[][] original, Selection sel)
+    {
+        if (select(s, p, original, sel, null) < k)
         {
-            imputed[s] = new byte[original[s].length];
-            List<Part> parts = new ArrayList<>();
-            
-            int preend = 0;
-            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++)
-            {
-                int start = preend;
-                //Math.min is a bit fudgy but it works for now
-                int end = Math.min((i+1) * original[s].length / Runtime.getRuntime().availableProcessors() + 1, original[s].length);
-                preend = end;
-                
-                parts.add(new Part(original,imputed[s],s,start,end));
-            }
-            try
+            // We don't have k samples with values to impute from
+            return -1;
+        }
+        
+        // Store the weights applicable to each of the three genotypes
+        double[] w = sel.w;
+        Arrays.fill(w, 0.0);
+        //Loop around samples in order of distance
+        int[] order = sel.order;
+        int[] bucket = sel.bucket;
+        for (int f = 0; f < k; f++)
+        {
+            int i = order[f];
+            w[original[i][p]] += 1.0 / value[bucket[i]];
+        }
+        return Knni.vote(w);
+    }
+    
+    // Puts the (up to) k samples closest to sample s with a known genotype at
+    // snp p in sel.order, closest first.  Returns how many samples that is,
+    // which is less than k if there are not k samples with a known genotype.
+    // The bucket for the distance to each sample is taken from given if not
+    // null, else calculated, in which case gather must have been called for
+    // snp p.
+    private int select(int s, int p, byte[][] original, Selection sel, int[] given)
+    {
+        // Distances can only take a small number of values so rather than sort
+        // the samples by distance put each sample with a genotype for the
+        // current SNP in the bucket for its distance.  Only those samples can
+        // be used to impute from so the other samples are skipped.
+        // Once k samples have been seen any sample whose distance is in the
+        // bucket of the k-th closest seen so far, or further, cannot be one of
+        // the k closest (a sample in the same bucket loses to those seen
+        // before it) so is skipped.  If pruning, distance calculations that
+        // can be shown to end up that far are abandoned early.
+        int[] bucket = sel.bucket;
+        int[] count = sel.count;
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        int seen = 0;
+        int t = far + 1;
+        int below = 0;
+        for (int i = 0; i < original.length; i++)
+        {
+            bucket[i] = -1;
+            if (original[i][p] >= 0)
             {
-                List<Future<Set<Integer>>> notImputed = es.invokeAll(parts);
-                for (Future<Set<Integer>> ni: notImputed)
+                int b;
+                if (i == s)
                 {
-                    allNotImputed.addAll(ni.get());
+                    // The current sample is as far away as possible
+                    b = far;
+                }
+                else if (given != null)
+                {
+                    b = given[i];
+                }
+                else
+                {
+                    b = sdist(sel, s, i, PRUNE ? t : far);
+                    if (b < 0)
+                    {
+                        continue;
+                    }
+                }
+                if (b >= t)
+                {
+                    continue;
+                }
+                bucket[i] = b;
+                count[b]++;
+                min = Math.min(min, b);
+                max = Math.max(max, b);
+                seen++;
+                if (seen == k)
+                {
+                    // Find the bucket of the k-th closest and how many
+                    // samples are in it or closer
+                    t = min;
+                    below = count[t];
+                    while (below < k)
+                    {
+                        t++;
+                        below += count[t];
+                    }
+                }
+                else if (seen > k)
+                {
+                    below++;
+                    while (below - count[t] >= k)
+                    {
+                        below -= count[t];
+                        t--;
+                    }
                 }
             }
-            catch (InterruptedException | ExecutionException ex)
-            {
-                // We shouldn't really get here so no nice way to deal with it, hence throw error and crash
-                throw new Error(ex);
-            }
-            progress.done();
         }
-
-        if (allNotImputed.size() > 0)
+        
+        int n = Math.min(k, seen);
+        if (n == 0)
+        {
+            return 0;
+        }
+        if (seen < k)
+        {
+            // Every sample seen is used
+            t = max;
+        }
+        
+        // Find where each bucket up to the one holding the n-th closest
+        // sample starts in distance order
+        below = 0;
+        for (int b = min; b < t; b++)
         {
-            System.err.println();
-            System.err.println("WARNING: Unable to impute genotypes forthe following SNPs");
-            System.err.println("due to not enough known genotypes for these SNPs:");
-            boolean first = true;
-            for (Integer i: allNotImputed)
+            int c = count[b];
+            count[b] = below;
+            below += c;
+        }
+        count[t] = below;
+        
+        // Put the n closest samples in distance order.  Samples in the same
+        // bucket are in sample order, which is the order a stable sort by
+        // distance would give.
+        int[] order = sel.order;
+        int need = n - below;
+        for (int i = 0; i < original.length; i++)
+        {
+            int b = bucket[i];
+            if ((b >= 0) && (b <= t))
             {
-                if (!first)
+                if (b == t)
                 {
-                    System.err.println("\t");
+                    if (need == 0)
+                    {
+                        continue;
+                    }
+                    need--;
                 }
-                first = false;
-                System.err.print(i);
+                order[count[b]++] = i;
             }
-            System.err.println();
-            System.err.println();
         }
-        
-        es.shutdown();
-        return imputed;
+        clear(count, min, max);
+        return n;
     }
     
-    private byte impute(int s, int p, byte[][] original) throws NotEnoughGenotypesException, WrongNumberOfSNPsException
+    private static void clear(int[] count, int min, int max)
     {
-        //Calculate the distance to other samples for this snp / sample combination
-        double[] dist = dist(s,p,original);
-        
-        //Order the samples by their distance
-        SortByIndexDouble si = new SortByIndexDouble(dist);
-        Integer[] indicies = si.sort();
-        
-        int f = 0;
-        int i = 0;
-
-        // Store the weights applicable to each of the three genotypes
-        double[] w = new double[3];
-        //Loop around samples in order of distance
-        do
+        for (int b = min; b <= max; b++)
         {
-            // Only impute from samples that have a genotype for the crrent SNP
-            if (original[indicies[i]][p] >= 0)
-            {
-                w[original[indicies[i]][p]] += 1.0 / dist[indicies[i]];
-                f++;
-            }
-            i++;
+            count[b] = 0;
         }
-        // While we haven't seen enough known genotypes and there's still samples left
-        while ((f < k) && (i < indicies.length));
-        
-        if (f < k)
+    }
+    
+    // Gets the genotypes at the snps used to calculate distances for snp p
+    // packed into a block with a row per sample, so distances between any
+    // pair of samples can be calculated with a few popcounts.  Uses the block
+    // cache if there is one for this data.
+    private void gather(byte[][] original, int p, Selection sel)
+    {
+        // Use the l most similar snps to calculate the distance.  There
+        // may be fewer than l if LD was only calculated within a window.
+        int width = Math.min(l, sim.count(p));
+        if ((blocks != null) && blocks.isFor(original, sim))
         {
-            //Throw an error - we don't have k samples with values to impute from
-            throw new NotEnoughGenotypesException(p,k);
+            // Cached blocks hold all the neighbours so mask off those past l
+            sel.block = blocks.get(p);
         }
-        
-        // Return the genotype with most weight
-        if ((w[0] >= w[1]) && (w[0] >= w[2]))
+        else
         {
-            return 0;
+            // Otherwise repack into the selection's own block rather than
+            // allocating one for every snp
+            sim.neighbours(p, width, sel.neighbours);
+            sel.gathered.pack(original, sel.neighbours, 0, width);
+            sel.block = sel.gathered;
         }
-        if (w[1] >= w[2])
+        sel.width = width;
+        sel.words = (width + 63) / 64;
+        for (int x = 0; x < sel.words; x++)
         {
-            return 1;
+            int bits = Math.min(64, width - x * 64);
+            sel.mask[x] = (bits == 64) ? -1L : (1L << bits) - 1L;
         }
-        return 2;
     }
     
-    private double[] dist(int s, int p, byte[][] values) throws WrongNumberOfSNPsException
+    // Returns the bucket for the distance between two samples.  The bucket
+    // number increases with the distance.  Returns -1 if the distance is
+    // certain to be in bucket limit or further, in which case the
+    // calculation may be abandoned early.  Nothing is abandoned if limit is
+    // the furthest bucket.
+    private int sdist(Selection sel, int s1, int s2, int limit)
     {
-        //Simply loops round the other samples, catching the case where it's
-        //the current sample
-        double[] ret = new double[values.length];
-        for (int i = 0; i < values.length; i++)
+        // A genotype g is stored as a bit for g >= 1 (either the heterozygote
+        // or genotype 2 plane) and a bit for g = 2.  The difference between two
+        // genotypes is then the number of those bits that differ.
+        long[] r1 = sel.block.row(s1);
+        long[] r2 = sel.block.row(s2);
+        long[] mask = sel.mask;
+        int d = 0;
+        int c = 0;
+        sel.pairs++;
+        for (int x = 0; x < sel.words; x++)
         {
-            if (i != s)
+            int w = x * 3;
+            // c counts how many snps we've actually used to scale the
+            // distance with since some snps will be unknown
+            long known = r1[w + PackedGenotypes.KNOWN] & r2[w + PackedGenotypes.KNOWN] & mask[x];
+            long a = ((r1[w + PackedGenotypes.ONE] | r1[w + PackedGenotypes.TWO]) ^
+                    (r2[w + PackedGenotypes.ONE] | r2[w + PackedGenotypes.TWO])) & known;
+            long b = (r1[w + PackedGenotypes.TWO] ^ r2[w + PackedGenotypes.TWO]) & known;
+            if (limit >= far)
             {
-                ret[i] = sdist(values[s], values[i], p);
+                c += Long.bitCount(known);
+                d += Long.bitCount(a) + Long.bitCount(b);
+                continue;
             }
-            else
+            // Otherwise the word is done a slice at a time, checking before
+            // each slice whether the distance can still get below limit.
+            // The distance is smallest if every remaining snp is known in
+            // both samples and has the same genotype, giving a lower bound
+            // on the final distance.  As distances are d * l / c plus a
+            // constant that is compared as d / c against the d / c of the
+            // limit, in integers.  Checking within words means the bound is
+            // also used when l is no more than 64.
+            int ld = limitd[limit];
+            int lc = limitc[limit];
+            for (int y = 0; (y < 64) && (x * 64 + y < sel.width); y += SLICE)
             {
-                ret[i] = Double.MAX_VALUE;
+                int remaining = sel.width - x * 64 - y;
+                if ((long) d * lc >= (long) ld * (c + remaining))
+                {
+                    sel.pruned++;
+                    return -1;
+                }
+                long m = SLICE_MASK << y;
+                c += Long.bitCount(known & m);
+                d += Long.bitCount(a & m) + Long.bitCount(b & m);
             }
         }
-        return ret;
+        // If across the l most similar snps there wasn't a single case
+        // where both samples had a known genotype then set the distance to
+        // max
+        if (c == 0)
+        {
+            return far;
+        }
+        return rank[c * stride + d];
     }
     
-    private double sdist(byte[] v1, byte[] v2, int p) throws WrongNumberOfSNPsException
+    // Calculates the distance between two samples over the first widths[j]
+    // neighbours for every j, putting the summed genotype differences in
+    // d[j] and the number of neighbours known in both in c[j].  widths must
+    // be in increasing order and no more than the width sel was gathered for.
+    private static void prefixes(Selection sel, int s1, int s2, int[] widths, int[] d, int[] c)
     {
-        if (v1.length == v2.length)
-        {
-            int d = 0;
-            int c = 0;
-            // Get the most similar snps to the current snp
-            Integer[] s = sim[p];
-            // Use the l most similar ones to calculate the distance
-            for (int j = 0; j < l; j++)
+        long[] r1 = sel.block.row(s1);
+        long[] r2 = sel.block.row(s2);
+        long[] mask = sel.mask;
+        int dt = 0;
+        int ct = 0;
+        int j = 0;
+        sel.pairs++;
+        for (int x = 0; x < sel.words; x++)
+        {
+            int w = x * 3;
+            long known = r1[w + PackedGenotypes.KNOWN] & r2[w + PackedGenotypes.KNOWN] & mask[x];
+            long a = ((r1[w + PackedGenotypes.ONE] | r1[w + PackedGenotypes.TWO]) ^
+                    (r2[w + PackedGenotypes.ONE] | r2[w + PackedGenotypes.TWO])) & known;
+            long b = (r1[w + PackedGenotypes.TWO] ^ r2[w + PackedGenotypes.TWO]) & known;
+            // Widths ending in this word only count some of its bits
+            while ((j < widths.length) && (widths[j] - x * 64 < 64))
             {
-                int i = s[j];
-                int p1 = v1[i];
-                int p2 = v2[i];
-                if ((p1 != -1) && (p2 != -1))
-                {
-                    // c counts how many snps we've actually used to scale the
-                    // distance with since some snps will be unknown
-                    c++;
-                    d += Math.abs(p1 - p2);
-                }
+                long m = (1L << (widths[j] - x * 64)) - 1L;
+                d[j] = dt + Long.bitCount(a & m) + Long.bitCount(b & m);
+                c[j] = ct + Long.bitCount(known & m);
+                j++;
+            }
+            dt += Long.bitCount(a) + Long.bitCount(b);
+            ct += Long.bitCount(known);
+        }
+        while (j < widths.length)
+        {
+            d[j] = dt;
+            c[j] = ct;
+            j++;
+        }
+    }
+    
+    // Checks every sample has the same number of snps
+    private void check(byte[][] original) throws WrongNumberOfSNPsException
+    {
+        for (byte[] v: original)
+        {
+            if (v.length != original[0].length)
+            {
+                //Shouldn't reach here if you use one of the provided data reading
+                //methods as they already test for this.  Hence why the error is
+                //currently not too informative
+                throw new WrongNumberOfSNPsException("Unknown");
             }
-            // If across the l most similar snps there wasn't a single case
-            // where both samples had a known genotype then set the distance to
-            // max
-            if (c == 0)
+        }
+    }
+    
+    // Cumulative estimated cost of the snps given the number of genotypes to
+    // be imputed at each.  Every snp costs one for visiting it, plus one for
+    // gathering its neighbours if anything is to be imputed, plus one per
+    // genotype imputed.  Entry p is the cost of all snps before p.  Knni uses
+    // the same costs for samples, where the extra one is for sorting the
+    // other samples.
+    static long[] cost(int[] number)
+    {
+        long[] cost = new long[number.length + 1];
+        for (int p = 0; p < number.length; p++)
+        {
+            cost[p + 1] = cost[p] + 1 + ((number[p] > 0) ? number[p] + 1 : 0);
+        }
+        return cost;
+    }
+    
+    // The cost below which a range of snps is not split further.  Gives many
+    // more ranges than threads so there is always work to steal.
+    static int grain(long[] cost)
+    {
+        long g = cost[cost.length - 1] / ((long) POOL.getParallelism() * 32);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, g));
+    }
+    
+    // Finds the snp that splits a range into two of about equal cost
+    static int split(long[] cost, int start, int end)
+    {
+        long half = (cost[start] + cost[end]) / 2;
+        int mid = Arrays.binarySearch(cost, start + 1, end, half);
+        if (mid < 0)
+        {
+            mid = -mid - 1;
+        }
+        return Math.max(start + 1, Math.min(end - 1, mid));
+    }
+    
+    // Works out every distance sdist can give.  The distance is d * l / c
+    // (adding a constant so we don't have a distance of zero as that caused
+    // problems later) where c is the number of SNPs used, at most l, and d
+    // is the total difference in genotype over them, at most 2c.  Each
+    // distinct value gets a bucket, numbered in order of distance, and the
+    // distance itself is kept for weighting.
+    private void buckets()
+    {
+        selections.clear();
+        maxc = Math.min(l, sim.maxCount());
+        stride = 2 * maxc + 1;
+        double[] all = new double[(maxc + 1) * stride + 1];
+        int n = 0;
+        for (int c = 1; c <= maxc; c++)
+        {
+            for (int d = 0; d <= 2 * c; d++)
             {
-                return Double.MAX_VALUE;
+                all[n++] = ((double) d * (double) l / (double) c) + ADD_CONSTANT;
             }
-            //Else return the scaled distance (adding a constant so we don't have a
-            //distance of zero as that caused problems later.
-            else
+        }
+        all[n++] = Double.MAX_VALUE;
+        
+        double[] sorted = Arrays.copyOf(all, n);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if ((distinct == 0) || (Double.compare(sorted[i], sorted[distinct - 1]) != 0))
             {
-                return ((double) d * (double) l / (double) c) + ADD_CONSTANT;
+                sorted[distinct++] = sorted[i];
             }
         }
-        else
+        value = Arrays.copyOf(sorted, distinct);
+        
+        // Also keep a d and c giving each distance, for pruning
+        rank = new int[(maxc + 1) * stride];
+        limitd = new int[distinct];
+        limitc = new int[distinct];
+        for (int c = 1; c <= maxc; c++)
         {
-            //Shouldn't reach here if you use one of the provided data reading
-            //methods as they already test for this.  Hence why the error is
-            //currently not too informative
-            throw new WrongNumberOfSNPsException("Unknown");
-        }        
+            for (int d = 0; d <= 2 * c; d++)
+            {
+                int r = Arrays.binarySearch(value, ((double) d * (double) l / (double) c) + ADD_CONSTANT);
+                rank[c * stride + d] = r;
+                limitd[r] = d;
+                limitc[r] = c;
+            }
+        }
+        far = Arrays.binarySearch(value, Double.MAX_VALUE);
     }
     
     /**
@@ -281,142 +565,454 @@ public class KnniLD
      */    
     public double fastAccuracy(byte[][] original, Mask mask)
     {
-        int nt = Runtime.getRuntime().availableProcessors();
-        ExecutorService es = Executors.newFixedThreadPool(nt);        
+        return fastAccuracies(original, mask)[k];
+    }
     
-        boolean[][] maskA = mask.getArray();
-        //List<SampleSnp> fullList = mask.getList();
+    /**
+     * Performs a fast accuracy calculation for every value of k up to the
+     * value of k of this object in a single pass.  As the closest samples do
+     * not depend on k, the closest k samples are found once for each masked
+     * genotype and the imputed genotype worked out for every number of them.
+     * @param original The original genotype values
+     * @param mask A mask
+     * @return Array of length k + 1 where entry i is the percentage of
+     * genotypes imputed correctly with k = i.  Entry 0 is unused.
+     */
+    public double[] fastAccuracies(byte[][] original, Mask mask)
+    {
+        return accuracies(original, mask, new KnniLD[] {this})[0];
+    }
+    
+    /**
+     * Performs a fast accuracy calculation for every value of k up to the
+     * value of k of this object and each of the given values of l in a
+     * single pass.  The distances between samples for every value of l are
+     * calculated together as the distance for a smaller l is just a prefix of
+     * the distance for a larger l.  The value of l of this object is not used.
+     * @param original The original genotype values
+     * @param mask A mask
+     * @param ls The values of l
+     * @return Array with an entry for each value of l, each an array of length
+     * k + 1 where entry i is the percentage of genotypes imputed correctly
+     * with k = i.  Entry 0 is unused.
+     */
+    public double[][] fastAccuracies(byte[][] original, Mask mask, int[] ls)
+    {
+        // Done in increasing order of l
+        int[] sorted = Arrays.copyOf(ls, ls.length);
+        Arrays.sort(sorted);
+        KnniLD[] runs = new KnniLD[sorted.length];
+        for (int j = 0; j < sorted.length; j++)
+        {
+            runs[j] = new KnniLD(sim, k, sorted[j], blocks);
+        }
+        double[][] result = accuracies(original, mask, runs);
         
-        //int nt = Runtime.getRuntime().availableProcessors();
-        List<List<SampleSnp>> lists = new ArrayList<>(nt);
-        for (int t = 0; t < nt; t++)
+        double[][] accuracy = new double[ls.length][];
+        for (int j = 0; j < ls.length; j++)
         {
-            lists.add(new ArrayList<SampleSnp>());
+            accuracy[j] = result[Arrays.binarySearch(sorted, ls[j])];
         }
-        int ct = 0;
+        return accuracy;
+    }
+    
+    // Calculates fast accuracies for each of the given objects, which must
+    // be in increasing order of l and have the same k as this
+    private double[][] accuracies(byte[][] original, Mask mask, KnniLD[] runs)
+    {
+        for (KnniLD r: runs)
+        {
+            r.buckets();
+        }
+        pairs.reset();
+        pruned.reset();
+        try
+        {
+            check(original);
+        }
+        catch (WrongNumberOfSNPsException ex)
+        {
+            // We shouldn't really get here so no nice way to deal with it, hence throw error and crash
+            throw new Error(ex);
+        }
+    
+        // As for compute masked genotypes are done a snp at a time with snps
+        // split into ranges with about the same number of masked genotypes
+        boolean[][] maskA = mask.getArray();
+        int snps = original[0].length;
+        int[] masked = new int[snps];
         int cm = 0;
-        for (int i = 0; i < maskA.length; i++)
+        for (boolean[] m: maskA)
         {
-            boolean[] m = maskA[i];
-            for (int j = 0; j < m.length; j++)
+            for (int p = 0; p < snps; p++)
             {
-                if (m[j])
+                if (m[p])
                 {
-                    lists.get(ct).add(new SampleSnp(i,j));
-                    ct = (ct + 1) % nt;
-                    cm ++;
+                    masked[p]++;
+                    cm++;
                 }
             }
         }
+        long[] cost = cost(masked);
+        int[][] cc = POOL.invoke(new FastPart(original, maskA, runs, cost, 0, snps, grain(cost)));
         
-        List<FastPart> parts = new ArrayList<>();
-        for (List<SampleSnp> list: lists)
-        {
-            parts.add(new FastPart(original,list));
-        }
-        
-        int cc = 0;
-        try
+        double[][] accuracy = new double[runs.length][k + 1];
+        for (int j = 0; j < runs.length; j++)
         {
-            List<Future<Integer>> results = es.invokeAll(parts);
-
-            for (Future<Integer> f: results)
+            for (int i = 1; i <= k; i++)
             {
-                cc += f.get();
+                accuracy[j][i] = (double) cc[j][i] / (double) cm;
             }
         }
-        catch (InterruptedException | ExecutionException ex)
-        {
-            // We shouldn't really get here so no nice way to deal with it, hence throw error and crash
-            throw new Error(ex);
-        }
-        
-        es.shutdown();
-        return (double) cc / (double) cm;
+        return accuracy;
     }
     
-    private class Part implements Callable<Set<Integer>>
+    private class Part extends RecursiveAction
     {
-        public Part(byte[][] original, byte[] imputed,
-                int s, int start, int end)
+        public Part(byte[][] original, byte[][] imputed, MissingIndex missing, int[] failures,
+                long[] cost, int start, int end, int grain, Progress progress)
         {
             this.original = original;
             this.imputed = imputed;
-            this.s = s;
+            this.missing = missing;
+            this.failures = failures;
+            this.cost = cost;
             this.start = start;
             this.end = end;
+            this.grain = grain;
+            this.progress = progress;
         }
         
         @Override
-        public Set<Integer> call() throws NotEnoughGenotypesException, WrongNumberOfSNPsException
+        protected void compute()
         {
-            Set<Integer> notImputed = new TreeSet<>();
+            if ((end - start > 1) && (cost[end] - cost[start] > grain))
+            {
+                int mid = split(cost, start, end);
+                invokeAll(new Part(original, imputed, missing, failures, cost, start, mid, grain, progress),
+                        new Part(original, imputed, missing, failures, cost, mid, end, grain, progress));
+                return;
+            }
+            
+            Selection sel = selection(original.length);
+            int[] offsets = missing.getSnpOffsets();
+            int[] samples = missing.getSamples();
             for (int p = start; p < end; p++)
             {
-                if (original[s][p] >= 0)
-                {
-                    imputed[p] = original[s][p];
-                }
-                else
+                if (offsets[p + 1] > offsets[p])
                 {
-                    try
+                    gather(original, p, sel);
+                    byte fallback = -1;
+                    for (int i = offsets[p]; i < offsets[p + 1]; i++)
                     {
-                        byte imp = impute(s, p, original);
-                        imputed[p] = imp;
-                    }
-                    catch (NotEnoughGenotypesException ex)
-                    {
-                        imputed[p] = -1;
-                        notImputed.add(p);
+                        int s = samples[i];
+                        byte g = impute(s, p, original, sel);
+                        if (g < 0)
+                        {
+                            // Each snp is only done by one part so no need
+                            // to synchronize
+                            failures[p]++;
+                            if (MODE_FALLBACK)
+                            {
+                                if (fallback < 0)
+                                {
+                                    fallback = Mode.impute(original, p);
+                                }
+                                g = fallback;
+                            }
+                            else
+                            {
+                                g = 0;
+                            }
+                        }
+                        imputed[s][p] = g;
                     }
                 }
             }
-            return notImputed;
+            progress.done(end - start);
+            pairs.add(sel.pairs);
+            pruned.add(sel.pruned);
+            sel.release();
         }
         
-        private final int s;
+        private final byte[][] original;
+        private final byte[][] imputed;
+        private final MissingIndex missing;
+        private final int[] failures;
+        private final long[] cost;
         private final int start;
         private final int end;
-        private final byte[] imputed;
-        private final byte[][] original;
+        private final int grain;
+        private final Progress progress;
+        
+        private static final long serialVersionUID = 1L;
     }
     
-    private class FastPart implements Callable<Integer>
+    // Returns the number of masked genotypes imputed correctly for every
+    // value of k up to k, for each of the given objects (which differ only in
+    // l).  If there is only one object its distances are calculated by it,
+    // with pruning, else the distances for every l are calculated together.
+    private class FastPart extends RecursiveTask<int[][]>
     {
-        public FastPart(byte[][] orig, List<SampleSnp> todo)
+        public FastPart(byte[][] orig, boolean[][] mask, KnniLD[] runs, long[] cost,
+                int start, int end, int grain)
         {
             this.orig = orig;
-            this.todo = todo;
+            this.mask = mask;
+            this.runs = runs;
+            this.cost = cost;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
         }
         
         @Override
-        public Integer call() throws NotEnoughGenotypesException, WrongNumberOfSNPsException
+        protected int[][] compute()
         {
-            int c = 0;
-            for (SampleSnp ss: todo)
+            if ((end - start > 1) && (cost[end] - cost[start] > grain))
+            {
+                int mid = split(cost, start, end);
+                FastPart right = new FastPart(orig, mask, runs, cost, mid, end, grain);
+                right.fork();
+                int[][] c = new FastPart(orig, mask, runs, cost, start, mid, grain).compute();
+                int[][] r = right.join();
+                for (int j = 0; j < c.length; j++)
+                {
+                    for (int i = 0; i < c[j].length; i++)
+                    {
+                        c[j][i] += r[j][i];
+                    }
+                }
+                return c;
+            }
+            
+            // Correct counts for the values of k a genotype could be imputed
+            // for, and the change in correct counts from the smallest value of
+            // k it couldn't be imputed for onwards
+            int[][] c = new int[runs.length][k + 2];
+            int[][] unimputed = new int[runs.length][k + 2];
+            Selection[] sels = new Selection[runs.length];
+            for (int j = 0; j < runs.length; j++)
+            {
+                sels[j] = runs[j].selection(orig.length);
+            }
+            // The widest object gathers the neighbours for all of them
+            KnniLD widest = runs[runs.length - 1];
+            Selection wide = sels[runs.length - 1];
+            boolean multi = runs.length > 1;
+            int[] widths = new int[runs.length];
+            int[] dv = new int[runs.length];
+            int[] cv = new int[runs.length];
+            double[] w = wide.w;
+            for (int p = start; p < end; p++)
             {
-                try
+                boolean gathered = false;
+                byte fallback = -1;
+                for (int s = 0; s < orig.length; s++)
                 {
-                    byte imp = impute(ss.getSample(), ss.getSnp(), orig);
-                    if (imp == orig[ss.getSample()][ss.getSnp()])
+                    if (mask[s][p])
                     {
-                        c++;
+                        if (!gathered)
+                        {
+                            widest.gather(orig, p, wide);
+                            for (int j = 0; j < runs.length; j++)
+                            {
+                                widths[j] = Math.min(runs[j].l, sim.count(p));
+                            }
+                            gathered = true;
+                        }
+                        if (multi)
+                        {
+                            for (int i = 0; i < orig.length; i++)
+                            {
+                                if ((i != s) && (orig[i][p] >= 0))
+                                {
+                                    prefixes(wide, s, i, widths, dv, cv);
+                                    for (int j = 0; j < runs.length; j++)
+                                    {
+                                        KnniLD r = runs[j];
+                                        sels[j].given[i] = (cv[j] == 0) ? r.far : r.rank[cv[j] * r.stride + dv[j]];
+                                    }
+                                }
+                            }
+                        }
+                        for (int j = 0; j < runs.length; j++)
+                        {
+                            KnniLD r = runs[j];
+                            // Adding the samples one at a time in distance
+                            // order gives the imputed genotype for each value
+                            // of k
+                            int n = r.select(s, p, orig, sels[j], multi ? sels[j].given : null);
+                            int[] order = sels[j].order;
+                            int[] bucket = sels[j].bucket;
+                            Arrays.fill(w, 0.0);
+                            for (int f = 0; f < n; f++)
+                            {
+                                int i = order[f];
+                                w[orig[i][p]] += 1.0 / r.value[bucket[i]];
+                                if (Knni.vote(w) == orig[s][p])
+                                {
+                                    c[j][f + 1]++;
+                                }
+                            }
+                            // If we can't impute it then by definition we've imputed it
+                            // incorrectly, unless falling back to the mode.  Not
+                            // being able to impute some genotypes doesn't stop this
+                            // value of k having the highest accuracy.  If we end up
+                            // using it a warning message will be displayed when
+                            // imputing.
+                            if ((n < k) && MODE_FALLBACK)
+                            {
+                                if (fallback < 0)
+                                {
+                                    fallback = Mode.impute(orig, p);
+                                }
+                                if (fallback == orig[s][p])
+                                {
+                                    unimputed[j][n + 1]++;
+                                }
+                            }
+                        }
                     }
                 }
-                catch (NotEnoughGenotypesException ex)
+            }
+            for (int j = 0; j < runs.length; j++)
+            {
+                int u = 0;
+                for (int i = 1; i <= k; i++)
                 {
-                    // Doing nothing here makes a certain amount of sense.  If we can't impute it then by definition
-                    // we've imputed it incorrectly.  Throwing an error probably doesn't make sense as we may have an
-                    // higher accuracy with this value of k even if some SNPs can't be imputed.  If we end up using
-                    // this value of k a warning message will be displayed when imputing.  If we don't then it's
-                    // not a concern.
+                    u += unimputed[j][i];
+                    c[j][i] += u;
                 }
+                pairs.add(sels[j].pairs);
+                pruned.add(sels[j].pruned);
+                sels[j].release();
             }
             return c;
         }
         
-        private final List<SampleSnp> todo;
         private final byte[][] orig;
+        private final boolean[][] mask;
+        private final KnniLD[] runs;
+        private final long[] cost;
+        private final int start;
+        private final int end;
+        private final int grain;
+        
+        private static final long serialVersionUID = 1L;
+    }
+    
+    // Takes working space for a range of snps from those left by earlier
+    // ranges, so there is about one per thread rather than one per range
+    private Selection selection(int samples)
+    {
+        Selection sel = selections.poll();
+        if (sel == null)
+        {
+            sel = new Selection(samples);
+        }
+        return sel;
+    }
+    
+    // Working space for impute, one per thread
+    private class Selection
+    {
+        public Selection(int samples)
+        {
+            bucket = new int[samples];
+            given = new int[samples];
+            count = new int[value.length];
+            order = new int[k];
+            mask = new long[(maxc + 63) / 64];
+            neighbours = new int[maxc];
+            w = new double[3];
+            gathered = new PackedGenotypes(samples, maxc);
+        }
+        
+        // Gives the working space back once its counts have been added up
+        public void release()
+        {
+            pairs = 0;
+            pruned = 0;
+            selections.add(this);
+        }
+        
+        private final int[] bucket;
+        // Buckets worked out for every value of l together, when there is
+        // more than one
+        private final int[] given;
+        private final int[] count;
+        private final int[] order;
+        // Weights for each of the three genotypes
+        private final double[] w;
+        // Genotypes at the neighbours of the current snp, how many words of
+        // them to use and which bits of those words
+        private PackedGenotypes block;
+        private final int[] neighbours;
+        private final PackedGenotypes gathered;
+        private int width;
+        private int words;
+        private final long[] mask;
+        // Number of distance calculations started and abandoned
+        private long pairs;
+        private long pruned;
+    }
+    
+    /**
+     * Returns the number of distances between pairs of samples calculated
+     * by the last run of compute or fastAccuracy
+     * @return The number of distances
+     */
+    public long getDistances()
+    {
+        return pairs.sum();
+    }
+    
+    /**
+     * Returns the number of distances between pairs of samples abandoned
+     * early by the last run of compute or fastAccuracy as they could not be
+     * among the k closest.  Included in the count returned by getDistances.
+     * @return The number of distances abandoned
+     */
+    public long getPruned()
+    {
+        return pruned.sum();
+    }
+    
+    /**
+     * Returns the number of genotypes at each SNP that could not be imputed
+     * by LD-kNNi in the last call to compute because there were not k samples
+     * with a known genotype.  If falling back to mode imputation these
+     * genotypes will have been imputed by that instead.
+     * @return The number of genotypes not imputed at each SNP
+     */
+    public int[] getFailures()
+    {
+        return failures;
+    }
+    
+    /**
+     * Sets whether genotypes that cannot be imputed because there are not k
+     * samples with a known genotype are imputed with the mode instead.
+     * Otherwise they are set to 0.  Defaults to false.
+     * @param fallback Whether to fall back to mode imputation
+     */
+    public static void setModeFallback(boolean fallback)
+    {
+        MODE_FALLBACK = fallback;
+    }
+    
+    /**
+     * Sets whether distance calculations are abandoned once they are certain
+     * to be too far for the sample to be one of the k closest.  Pruning does
+     * not change the result.  As distances over 64 neighbours only take a few
+     * popcounts the checks can cost more than they save unless l is large.
+     * Defaults to false.
+     * @param p Whether to prune
+     */
+    public static void setPrune(boolean p)
+    {
+        PRUNE = p;
     }
     
     public static void setAddConstant(double constant)
@@ -429,10 +1025,39 @@ public class KnniLD
         SILENT = s;
     }
     
-    Integer[][] sim;
+    LDIndex sim;
     private final int k;
     private final int l;
+    private final NeighbourBlocks blocks;
+    private final LongAdder pairs = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+    private int[] failures;
+    // Working space left over from ranges of snps that have finished.  Only
+    // holds working space for the current sample count, l and LD index as
+    // it is emptied whenever they may change.
+    private final ConcurrentLinkedQueue<Selection> selections = new ConcurrentLinkedQueue<>();
+    
+    private int[] rank;
+    private double[] value;
+    private int[] limitd;
+    private int[] limitc;
+    private int stride;
+    private int far;
+    private int maxc;
     
     private static double ADD_CONSTANT = 1.0;
     private static boolean SILENT = false;
+    private static boolean PRUNE = false;
+    private static boolean MODE_FALLBACK = false;
+    // Number of neighbours added to a distance between checks of whether it
+    // can be abandoned
+    private static final int SLICE = 16;
+    private static final long SLICE_MASK = (1L << SLICE) - 1L;
+    /**
+     * The pool imputation and the all-against-all calculations of Knni,
+     * NearestSamples and Correlation run on.  Shared by every run so
+     * optimization, which runs fastAccuracy many times, and LD calculated a
+     * block at a time don't keep starting new threads.
+     */
+    public static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 }
@@ -17,8 +17,11 @@
 
 package Methods;
 
+import Correlation.LDIndex;
 import Mask.Mask;
 import Utils.Value;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,10 +36,10 @@ public class KnniLDOpt implements Value
      * Constructor
      * @param orig The original matrix
      * @param mask The mask
-     * @param sim Calculated similarity between SNPs (LD).  Map from SNP to
-     * list of most similar SNPs
+     * @param sim Calculated similarity between SNPs (LD).  The most similar
+     * SNPs to each SNP
      */
-    public KnniLDOpt(byte[][] orig, Mask mask, Map<Integer,List<Integer>> sim)
+    public KnniLDOpt(byte[][] orig, Mask mask, LDIndex sim)
     {
         this(orig,mask,sim,false);
     }
@@ -45,17 +48,36 @@ public class KnniLDOpt implements Value
      * Constructor
      * @param orig The original matrix
      * @param mask The mask
-     * @param sim Calculated similarity between SNPs (LD).  Map from SNP to
-     * list of most similar SNPs
+     * @param sim Calculated similarity between SNPs (LD).  The most similar
+     * SNPs to each SNP
      * @param verbose Verbose output to standard out?
      */
-    public KnniLDOpt(byte[][] orig, Mask mask, Map<Integer,List<Integer>> sim,
+    public KnniLDOpt(byte[][] orig, Mask mask, LDIndex sim,
             boolean verbose)
+    {
+        this(orig,mask,sim,new NeighbourBlocks(orig,sim),verbose);
+    }
+    
+    /**
+     * Constructor
+     * @param orig The original matrix
+     * @param mask The mask
+     * @param sim Calculated similarity between SNPs (LD).  The most similar
+     * SNPs to each SNP
+     * @param blocks Cache of neighbour blocks shared between each run of
+     * KnniLD
+     * @param verbose Verbose output to standard out?
+     */
+    public KnniLDOpt(byte[][] orig, Mask mask, LDIndex sim,
+            NeighbourBlocks blocks, boolean verbose)
     {
         this.orig = orig;
         this.mask = mask;
         this.sim = sim;
+        this.blocks = blocks;
         this.verbose = verbose;
+        accuracies = new HashMap<>();
+        kmax = Math.min(orig.length, MIN_K);
         if (verbose)
         {
             System.out.println("\tk\tl\tAccuracy");
@@ -69,9 +91,45 @@ public class KnniLDOpt implements Value
     @Override
     public double value(int[] p)
     {
-        KnniLD knnild = new KnniLD(sim,p[0],p[1]);
+        // The accuracy for every k up to some maximum is calculated at once
+        // for each l, so only a new l, or a k past the maximum, needs a new
+        // calculation
         long start = System.currentTimeMillis();
-        double v = knnild.fastAccuracy(orig, mask);
+        if (p[0] > kmax)
+        {
+            kmax = Math.max(p[0], Math.min(orig.length, kmax * 2));
+            accuracies.clear();
+        }
+        double[] accuracy = accuracies.get(p[1]);
+        if (accuracy == null)
+        {
+            // Distances for several values of l can be calculated together so
+            // also do the values of l the optimizer brackets with (one more
+            // than a power of two) that haven't already been done
+            List<Integer> ls = new ArrayList<>();
+            int maxl = sim.maxCount();
+            ls.add(p[1]);
+            for (int l = 1; l <= maxl; l = (l == 1) ? 3 : (l - 1) * 2 + 1)
+            {
+                if ((l != p[1]) && !accuracies.containsKey(l))
+                {
+                    ls.add(l);
+                }
+            }
+            int[] la = new int[ls.size()];
+            for (int i = 0; i < la.length; i++)
+            {
+                la[i] = ls.get(i);
+            }
+            KnniLD knnild = new KnniLD(sim,kmax,p[1],blocks);
+            double[][] result = knnild.fastAccuracies(orig, mask, la);
+            for (int i = 0; i < la.length; i++)
+            {
+                accuracies.put(la[i], result[i]);
+            }
+            accuracy = result[0];
+        }
+        double v = accuracy[p[0]];
         long time = (System.currentTimeMillis() - start) / 1000;
         if (verbose)
         {
@@ -86,6 +144,12 @@ public class KnniLDOpt implements Value
     
     private byte[][] orig;
     private Mask mask;
-    private Map<Integer,List<Integer>> sim;
+    private LDIndex sim;
+    private NeighbourBlocks blocks;
     private boolean verbose;
+    // Accuracy for each value of k, by l
+    private Map<Integer,double[]> accuracies;
+    private int kmax;
+    
+    private static final int MIN_K = 32;
 }
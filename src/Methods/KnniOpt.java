@@ -17,9 +17,9 @@
 
 package Methods;
 
-import Exceptions.NotEnoughGenotypesException;
 import Exceptions.WrongNumberOfSNPsException;
 import Mask.Mask;
+import Utils.SampleWeights;
 import Utils.Value;
 
 /**
@@ -35,7 +35,7 @@ public class KnniOpt implements Value
      * @param mask The mask
      * @param weight Distance (between samples) matrix
      */
-    public KnniOpt(byte[][] orig, Mask mask, double[][] weight)
+    public KnniOpt(byte[][] orig, Mask mask, SampleWeights weight)
     {
         this(orig,mask,weight,false);
     }
@@ -47,7 +47,24 @@ public class KnniOpt implements Value
      * @param weight Distance (between samples) matrix
      * @param verbose Verbose output to standard out?
      */
-    public KnniOpt(byte[][] orig, Mask mask, double[][] weight, boolean verbose)
+    public KnniOpt(byte[][] orig, Mask mask, SampleWeights weight, boolean verbose)
+    {
+        this(orig, mask, weight, null, verbose);
+    }
+    
+    /**
+     * Constructor
+     * @param orig The original matrix
+     * @param mask The mask
+     * @param near The nearest samples to each sample
+     * @param verbose Verbose output to standard out?
+     */
+    public KnniOpt(byte[][] orig, Mask mask, NearestSamples near, boolean verbose)
+    {
+        this(orig, mask, null, near, verbose);
+    }
+    
+    private KnniOpt(byte[][] orig, Mask mask, SampleWeights weight, NearestSamples near, boolean verbose)
     {
         this.orig = orig;
         this.mask = mask;
@@ -58,14 +75,31 @@ public class KnniOpt implements Value
         }
         
         this.weight = weight;
+        this.near = near;
     }
     
     @Override
-    public double value(int[] k) throws NotEnoughGenotypesException,
-           WrongNumberOfSNPsException
+    public double value(int[] k) throws WrongNumberOfSNPsException
     {
-        Knni knni = new Knni(k[0]);
-        double v = knni.fastAccuracy(orig, mask, weight);
+        // The accuracy for every k up to some maximum is calculated at once,
+        // so only a k past the maximum needs a new calculation
+        if ((accuracy == null) || (k[0] >= accuracy.length))
+        {
+            int kmax = Math.max(MIN_K, (accuracy == null) ? 0 : (accuracy.length - 1) * 2);
+            if (near == null)
+            {
+                kmax = Math.max(k[0], Math.min(orig.length, kmax));
+                accuracy = new Knni(kmax).fastAccuracies(orig, mask, weight);
+            }
+            else
+            {
+                // Going past the nearest samples kept is slow so don't unless
+                // asked to
+                kmax = Math.max(k[0], Math.min(near.top(), kmax));
+                accuracy = new Knni(kmax).fastAccuracies(orig, mask, near);
+            }
+        }
+        double v = accuracy[k[0]];
         if (verbose)
         {
             System.out.println("\t" + k[0] + "\t" + v);
@@ -75,6 +109,11 @@ public class KnniOpt implements Value
     
     private byte[][] orig;
     private Mask mask;
-    private double[][] weight;
+    private SampleWeights weight;
+    private NearestSamples near;
     private boolean verbose;
+    // Accuracy for each value of k
+    private double[] accuracy;
+    
+    private static final int MIN_K = 32;
 }
@@ -18,6 +18,8 @@
 package Methods;
 
 import Mask.Mask;
+import Utils.MissingIndex;
+import java.util.Arrays;
 
 /**
  * Class to perform Mode imputation
@@ -39,6 +41,17 @@ public class Mode
      * @return The imputed data set.
      */
     public byte[][] compute(byte[][] original)
+    {
+        return compute(original, new MissingIndex(original));
+    }
+    
+    /**
+     * Impute missing data
+     * @param original The original data set.  Missing data is coded as -1
+     * @param missing Index of the missing genotypes in the original data set
+     * @return The imputed data set.
+     */
+    public byte[][] compute(byte[][] original, MissingIndex missing)
     {
         // Create counts of each of the three genotypes at each SNP
         int[][] count = new int[original[0].length][3];
@@ -72,23 +85,16 @@ public class Mode
             max[i] = mi;
         }
         
-        // Loop through every genotype.  If it is missing (i.e. -1) replace it
-        // with the modal value.
-        byte[][] ret = new byte[original.length][];
+        // Copy the known genotypes and replace every missing genotype with
+        // the modal value.
+        byte[][] ret = MissingIndex.copy(original);
+        int[] offsets = missing.getSampleOffsets();
+        int[] snps = missing.getSnps();
         for (int i = 0; i < original.length; i++)
         {
-            byte[] o = original[i];
-            ret[i] = new byte[o.length];
-            for (int j = 0; j < o.length; j++)
+            for (int j = offsets[i]; j < offsets[i + 1]; j++)
             {
-                if (o[j] >= 0)
-                {
-                    ret[i][j] = o[j];
-                }
-                else
-                {
-                    ret[i][j] = max[j];
-                }
+                ret[i][snps[j]] = max[snps[j]];
             }
         }
         
@@ -108,6 +114,12 @@ public class Mode
         int correct = 0;
         int total = 0;
         
+        // The mode of each snp, worked out the first time it's needed.  -1
+        // for not yet worked out.
+        byte[] modes = new byte[original[0].length];
+        Arrays.fill(modes, (byte) -1);
+        int[] count = new int[3];
+        
         for (int i = 0; i < maskA.length; i++)
         {
             boolean[] m = maskA[i];
@@ -115,7 +127,11 @@ public class Mode
             {
                 if (m[j])
                 {
-                    byte imputed = impute(original, j);
+                    if (modes[j] < 0)
+                    {
+                        modes[j] = impute(original, j, count);
+                    }
+                    byte imputed = modes[j];
                     if (imputed == original[i][j])
                     {
                         correct++;
@@ -128,9 +144,16 @@ public class Mode
         return (double) correct / (double) total;
     }
 
-    private byte impute(byte[][] original, int p)
+    // Also used by the other methods for genotypes they are unable to impute
+    static byte impute(byte[][] original, int p)
     {
-        int[] count = new int[3];
+        return impute(original, p, new int[3]);
+    }
+    
+    // As above but with count as working space
+    private static byte impute(byte[][] original, int p, int[] count)
+    {
+        Arrays.fill(count, 0);
         for (byte[] o: original)
         {
             if (o[p] >= 0)
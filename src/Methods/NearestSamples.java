@@ -0,0 +1,265 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Methods;
+
+import Utils.MissingIndex;
+import Utils.PackedGenotypes;
+import Utils.Progress;
+import Utils.SilentProgress;
+import Utils.SortByIndexDouble;
+import Utils.TextProgress;
+import Utils.TileScheduler;
+import Utils.TopHeapDouble;
+
+/**
+ * The nearest samples to each sample, for kNNi, without keeping the weights
+ * between every pair of samples.  For each sample the ids of the top samples
+ * by weight, and their weights, are stored closest first in two primitive
+ * arrays so memory grows with the number of samples times the number kept
+ * rather than the square of the number of samples.  As that can be more
+ * than an array can hold, the arrays are split into sections of up to 2^27
+ * entries.  Weights are kept as doubles, as for SampleWeights, so
+ * near ties are ordered as in the full weights.  Ties are broken by id,
+ * so the stored samples are exactly the start of the order found by sorting
+ * all the weights.  If the stored samples run out before k samples with a
+ * known genotype are found the weights to every sample can be recalculated
+ * from the packed genotypes, which are kept for this.
+ * @author Daniel Money
+ */
+public class NearestSamples
+{
+    /**
+     * Constructor
+     * @param data The genotypes, indexed by sample and then SNP.  Missing
+     * data is coded as -1.
+     * @param top The number of nearest samples to keep for each sample.
+     * Limited to one less than the number of samples.
+     */
+    public NearestSamples(byte[][] data, int top)
+    {
+        samples = data.length;
+        this.top = Math.max(0, Math.min(top, samples - 1));
+        packed = Knni.pack(data);
+        long total = (long) samples * this.top;
+        ids = new int[(int) ((total + MASK) >>> SHIFT)][];
+        weights = new double[ids.length][];
+        for (int s = 0; s < ids.length; s++)
+        {
+            int size = (int) Math.min(1L << SHIFT, total - ((long) s << SHIFT));
+            ids[s] = new int[size];
+            weights[s] = new double[size];
+        }
+
+        Progress progress;
+        if (SILENT)
+        {
+            progress = new SilentProgress();
+        }
+        else
+        {
+            progress = new TextProgress((long) samples * ((long) samples - 1) / 2);
+        }
+
+        TopHeapDouble[] work = new TopHeapDouble[samples];
+        for (int i = 0; i < samples; i++)
+        {
+            work[i] = new TopHeapDouble(this.top);
+        }
+        TileScheduler scheduler = new TileScheduler(samples,
+                TileScheduler.tileSize(packed.words() * 3 * 8));
+        scheduler.run(new Block(work), progress, KnniLD.POOL);
+
+        for (int i = 0; i < samples; i++)
+        {
+            int[] wi = work[i].getIds();
+            double[] ws = work[i].getScores();
+            long p = (long) i * this.top;
+            for (int j = 0; j < this.top; j++, p++)
+            {
+                ids[(int) (p >>> SHIFT)][(int) (p & MASK)] = wi[j];
+                weights[(int) (p >>> SHIFT)][(int) (p & MASK)] = ws[j];
+            }
+        }
+    }
+
+    /**
+     * Chooses how many nearest samples to keep.  Enough are kept that k
+     * samples with a known genotype would be expected to be found among them
+     * given the proportion of missing genotypes, doubled as a margin.
+     * @param k The largest value of k that will be used
+     * @param missing Index of the missing genotypes
+     * @return The number of nearest samples to keep
+     */
+    public static int top(int k, MissingIndex missing)
+    {
+        double known = 1.0 - (double) missing.total() /
+                ((double) missing.samples() * (double) missing.snps());
+        double top = 2.0 * k / Math.max(known, 1.0 / missing.samples());
+        return (int) Math.min(missing.samples() - 1, Math.ceil(top));
+    }
+
+    /**
+     * Get the number of samples
+     * @return The number of samples
+     */
+    public int size()
+    {
+        return samples;
+    }
+
+    /**
+     * Get the number of nearest samples kept for each sample
+     * @return The number of nearest samples kept
+     */
+    public int top()
+    {
+        return top;
+    }
+
+    /**
+     * Gets the nearest samples to a sample and their weights
+     * @param s The sample
+     * @param order Array to fill with the nearest samples, closest first
+     * @param dist Array, indexed by sample, to fill with the weights of the
+     * nearest samples.  Entries for other samples are not changed.
+     * @return The number of nearest samples
+     */
+    int nearest(int s, int[] order, double[] dist)
+    {
+        long p = (long) s * top;
+        for (int i = 0; i < top; i++, p++)
+        {
+            int id = ids[(int) (p >>> SHIFT)][(int) (p & MASK)];
+            order[i] = id;
+            dist[id] = weights[(int) (p >>> SHIFT)][(int) (p & MASK)];
+        }
+        return top;
+    }
+
+    /**
+     * Recalculates the weights between a sample and every sample and sorts
+     * every sample from closest to furthest.  The weights are the same as
+     * those stored so the order starts with the nearest samples.
+     * @param s The sample
+     * @param order Array to fill with every sample, closest first
+     * @param temp Working space for sorting, of length the number of samples
+     * @param dist Array to fill with the weights of every sample
+     */
+    void all(int s, int[] order, int[] temp, double[] dist)
+    {
+        long[] r = packed.row(s);
+        for (int j = 0; j < samples; j++)
+        {
+            dist[j] = (j == s) ? 0.0 : Knni.sweight(r, packed.row(j), packed.columns());
+        }
+        SortByIndexDouble.sort(dist, true, order, temp);
+    }
+
+    /**
+     * Sets whether progress is displayed while finding the nearest samples.
+     * Defaults to false.
+     * @param s Whether to be silent
+     */
+    public static void setSilent(boolean s)
+    {
+        SILENT = s;
+    }
+
+    // Compares samples in a block of rows against samples in a block of
+    // columns.  As for LD, results are collected in heaps local to the block
+    // and only merged into the shared heaps once the block is finished.
+    private class Block implements TileScheduler.Tile
+    {
+        public Block(TopHeapDouble[] work)
+        {
+            this.work = work;
+        }
+
+        @Override
+        public int compute(int rstart, int rend, int cstart, int cend)
+        {
+            TopHeapDouble[] rows = new TopHeapDouble[rend - rstart];
+            for (int i = 0; i < rows.length; i++)
+            {
+                rows[i] = new TopHeapDouble(top);
+            }
+            // On the diagonal the rows and columns are the same samples
+            TopHeapDouble[] cols;
+            if (cstart == rstart)
+            {
+                cols = rows;
+            }
+            else
+            {
+                cols = new TopHeapDouble[cend - cstart];
+                for (int j = 0; j < cols.length; j++)
+                {
+                    cols[j] = new TopHeapDouble(top);
+                }
+            }
+
+            int done = 0;
+            for (int i = rstart; i < rend; i++)
+            {
+                long[] r = packed.row(i);
+                TopHeapDouble ra = rows[i - rstart];
+                for (int j = Math.max(i + 1, cstart); j < cend; j++)
+                {
+                    double v = Knni.sweight(r, packed.row(j), packed.columns());
+                    ra.add(j, v);
+                    cols[j - cstart].add(i, v);
+                    done++;
+                }
+            }
+
+            merge(rows, rstart);
+            if (cols != rows)
+            {
+                merge(cols, cstart);
+            }
+            return done;
+        }
+
+        private void merge(TopHeapDouble[] local, int start)
+        {
+            for (int i = 0; i < local.length; i++)
+            {
+                if (local[i].size() > 0)
+                {
+                    TopHeapDouble w = work[start + i];
+                    synchronized (w)
+                    {
+                        w.addAll(local[i]);
+                    }
+                }
+            }
+        }
+
+        private final TopHeapDouble[] work;
+    }
+
+    private final int samples;
+    private final int top;
+    private final PackedGenotypes packed;
+    private final int[][] ids;
+    private final double[][] weights;
+
+    private static boolean SILENT = false;
+    private static final int SHIFT = 27;
+    private static final long MASK = (1L << SHIFT) - 1;
+}
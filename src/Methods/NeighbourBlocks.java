@@ -0,0 +1,139 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Methods;
+
+import Correlation.LDIndex;
+import Utils.PackedGenotypes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the genotypes at each SNP's LD neighbours, packed so that the
+ * distance between two samples is a few popcounts.  The block for a SNP has
+ * a row per sample and a column per neighbour, in LD order.  Blocks are
+ * built when first needed and the least recently used are dropped once the
+ * cache uses more than a given amount of memory, so the whole genome need
+ * not be resident.  As KnniLD is run many times with different k and l
+ * while optimizing, sharing a cache between runs saves rebuilding blocks.
+ * @author Daniel Money
+ */
+public class NeighbourBlocks
+{
+    /**
+     * Constructor with the default memory limit of 256MB
+     * @param data The genotypes the blocks are for
+     * @param sim The LD neighbours of each SNP
+     */
+    public NeighbourBlocks(byte[][] data, LDIndex sim)
+    {
+        this(data, sim, 256L * 1024 * 1024);
+    }
+
+    /**
+     * Constructor
+     * @param data The genotypes the blocks are for
+     * @param sim The LD neighbours of each SNP
+     * @param memory The maximum memory to use in bytes
+     */
+    public NeighbourBlocks(byte[][] data, LDIndex sim, long memory)
+    {
+        this.data = data;
+        this.sim = sim;
+        this.memory = memory;
+        cache = new LinkedHashMap<>(16, 0.75f, true);
+        used = 0;
+    }
+
+    /**
+     * Gets the block for a SNP, building it if it isn't in the cache
+     * @param p The SNP
+     * @return The block
+     */
+    public PackedGenotypes get(int p)
+    {
+        synchronized (cache)
+        {
+            PackedGenotypes b = cache.get(p);
+            if (b != null)
+            {
+                return b;
+            }
+        }
+
+        // Build outside the lock so other threads aren't held up.  Two threads
+        // may occasionally build the same block, which is harmless.
+        PackedGenotypes b = build(data, sim, p);
+        long size = size(b);
+        synchronized (cache)
+        {
+            if (cache.put(p, b) == null)
+            {
+                used += size;
+            }
+            Iterator<Map.Entry<Integer,PackedGenotypes>> it = cache.entrySet().iterator();
+            while ((used > memory) && it.hasNext())
+            {
+                Map.Entry<Integer,PackedGenotypes> e = it.next();
+                if (e.getKey() != p)
+                {
+                    used -= size(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns whether this cache is for the given genotypes
+     * @param data The genotypes
+     * @param sim The LD neighbours
+     * @return Whether the cache is for the genotypes and neighbours
+     */
+    public boolean isFor(byte[][] data, LDIndex sim)
+    {
+        return (this.data == data) && (this.sim == sim);
+    }
+
+    /**
+     * Builds the block for a SNP without caching it
+     * @param data The genotypes
+     * @param sim The LD neighbours of each SNP
+     * @param p The SNP
+     * @return The block
+     */
+    public static PackedGenotypes build(byte[][] data, LDIndex sim, int p)
+    {
+        int[] neighbours = new int[sim.count(p)];
+        sim.neighbours(p, neighbours.length, neighbours);
+        return PackedGenotypes.gather(data, neighbours, 0, neighbours.length);
+    }
+
+    // Approximate memory used by a block, including array headers
+    private static long size(PackedGenotypes b)
+    {
+        return (long) b.rows() * (b.words() * 3L * 8L + 16L) + 16L;
+    }
+
+    private final byte[][] data;
+    private final LDIndex sim;
+    private final long memory;
+    private final LinkedHashMap<Integer,PackedGenotypes> cache;
+    private long used;
+}
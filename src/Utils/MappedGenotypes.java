@@ -0,0 +1,189 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Packed genotypes stored in a SNP-major binary file which is memory mapped
+ * a block of rows at a time.  Only the blocks currently being worked on
+ * need to be in memory, so data sets larger than the Java heap can be used.
+ * The file consists of a header (a magic number, the number of rows and the
+ * number of columns) followed by each row in the same layout as
+ * PackedGenotypes.row.
+ * @author Daniel Money
+ */
+public class MappedGenotypes
+{
+    /**
+     * Opens a file previously written by write
+     * @param file The file
+     * @throws IOException If there is a problem reading the file
+     */
+    public MappedGenotypes(File file) throws IOException
+    {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            if (raf.readInt() != MAGIC)
+            {
+                throw new IOException("Not a packed genotype file: " + file);
+            }
+            rows = raf.readInt();
+            columns = raf.readInt();
+        }
+        words = (columns + 63) / 64;
+    }
+
+    /**
+     * Writes genotypes to a file, packing the columns of the given array so
+     * that each SNP is a row of the file.  Rows are packed one at a time so
+     * no packed copy of the whole data set is made.
+     * @param data The genotypes, indexed by sample and then SNP.  Missing
+     * data is coded as -1.
+     * @param file The file to write to
+     * @throws IOException If there is a problem writing the file
+     */
+    public static void write(byte[][] data, File file) throws IOException
+    {
+        int rows = data[0].length;
+        int columns = data.length;
+        int length = ((columns + 63) / 64) * 3;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(rows).putInt(columns);
+            header.flip();
+            channel.write(header);
+
+            ByteBuffer buffer = ByteBuffer.allocate(length * 8);
+            LongBuffer lb = buffer.asLongBuffer();
+            long[] r = new long[length];
+            for (int i = 0; i < rows; i++)
+            {
+                Arrays.fill(r, 0L);
+                for (int j = 0; j < columns; j++)
+                {
+                    PackedGenotypes.set(r, j, data[j][i]);
+                }
+                lb.clear();
+                lb.put(r);
+                buffer.clear();
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads a block of rows into memory
+     * @param start The first row of the block
+     * @param end The end (exclusive) of the block
+     * @return The packed genotypes of the block.  Row 0 is row start of the file.
+     * @throws IOException If there is a problem reading the file
+     */
+    public PackedGenotypes block(int start, int end) throws IOException
+    {
+        int length = words * 3;
+        long[][] packed = new long[end - start][length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    HEADER + (long) start * length * 8, (long) (end - start) * length * 8);
+            LongBuffer lb = map.asLongBuffer();
+            for (int i = 0; i < packed.length; i++)
+            {
+                lb.get(packed[i]);
+            }
+        }
+        return new PackedGenotypes(packed, columns);
+    }
+
+    /**
+     * Calculates a hash of the genotypes in the file, so that results
+     * calculated from the file can be checked against it later.  The whole
+     * file is read, a block of rows at a time.
+     * @return The hash
+     * @throws IOException If there is a problem reading the file
+     */
+    public long hash() throws IOException
+    {
+        long h = ((long) rows << 32) | columns;
+        int length = words * 3;
+        int block = (int) Math.max(1, Math.min(rows, HASH_BLOCK / (length * 8L)));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            for (int start = 0; start < rows; start += block)
+            {
+                int end = Math.min(start + block, rows);
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        HEADER + (long) start * length * 8, (long) (end - start) * length * 8);
+                LongBuffer lb = map.asLongBuffer();
+                while (lb.hasRemaining())
+                {
+                    h = (h + lb.get()) * 0x9e3779b97f4a7c15L;
+                }
+            }
+        }
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Get the number of rows
+     * @return The number of rows
+     */
+    public int rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Get the number of columns
+     * @return The number of columns
+     */
+    public int columns()
+    {
+        return columns;
+    }
+
+    /**
+     * Get the number of bytes used by each row
+     * @return The number of bytes
+     */
+    public long rowBytes()
+    {
+        return (long) words * 3 * 8;
+    }
+
+    private final File file;
+    private final int rows;
+    private final int columns;
+    private final int words;
+
+    private static final int MAGIC = 0x4c49504b;
+    private static final int HEADER = 12;
+    private static final long HASH_BLOCK = 64L * 1024 * 1024;
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+/**
+ * Index of the missing genotypes in a data set, so imputation only needs to
+ * visit missing cells rather than scanning every genotype.  The missing SNPs
+ * of each sample are stored in compressed sparse row form (one array of SNPs,
+ * with a second array giving where each sample's SNPs start) and likewise the
+ * missing samples of each SNP.  Both are sorted.
+ * @author Daniel Money
+ */
+public class MissingIndex
+{
+    /**
+     * Constructor
+     * @param data The genotypes, indexed by sample and then SNP.  Missing
+     * data is coded as -1.
+     */
+    public MissingIndex(byte[][] data)
+    {
+        int snps = data[0].length;
+        sampleOffsets = new int[data.length + 1];
+        snpOffsets = new int[snps + 1];
+        for (int s = 0; s < data.length; s++)
+        {
+            byte[] d = data[s];
+            int c = 0;
+            for (int p = 0; p < d.length; p++)
+            {
+                if (d[p] < 0)
+                {
+                    c++;
+                    snpOffsets[p + 1]++;
+                }
+            }
+            sampleOffsets[s + 1] = sampleOffsets[s] + c;
+        }
+        for (int p = 0; p < snps; p++)
+        {
+            snpOffsets[p + 1] += snpOffsets[p];
+        }
+
+        missingSnps = new int[sampleOffsets[data.length]];
+        missingSamples = new int[snpOffsets[snps]];
+        int[] next = new int[snps];
+        System.arraycopy(snpOffsets, 0, next, 0, snps);
+        for (int s = 0; s < data.length; s++)
+        {
+            byte[] d = data[s];
+            int i = sampleOffsets[s];
+            for (int p = 0; p < d.length; p++)
+            {
+                if (d[p] < 0)
+                {
+                    missingSnps[i++] = p;
+                    missingSamples[next[p]++] = s;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of samples
+     * @return The number of samples
+     */
+    public int samples()
+    {
+        return sampleOffsets.length - 1;
+    }
+
+    /**
+     * Returns the number of SNPs
+     * @return The number of SNPs
+     */
+    public int snps()
+    {
+        return snpOffsets.length - 1;
+    }
+
+    /**
+     * Returns the total number of missing genotypes
+     * @return The number of missing genotypes
+     */
+    public int total()
+    {
+        return missingSnps.length;
+    }
+
+    /**
+     * Returns the number of missing genotypes a sample has
+     * @param sample The sample
+     * @return The number of missing genotypes
+     */
+    public int sampleCount(int sample)
+    {
+        return sampleOffsets[sample + 1] - sampleOffsets[sample];
+    }
+
+    /**
+     * Returns the number of missing genotypes at a SNP
+     * @param snp The SNP
+     * @return The number of missing genotypes
+     */
+    public int snpCount(int snp)
+    {
+        return snpOffsets[snp + 1] - snpOffsets[snp];
+    }
+
+    /**
+     * Returns where the missing SNPs of each sample start in the array
+     * returned by getSnps.  The returned array is the internal storage and
+     * should not be altered.
+     * @return The offsets
+     */
+    public int[] getSampleOffsets()
+    {
+        return sampleOffsets;
+    }
+
+    /**
+     * Returns the missing SNPs of every sample.  The returned array is the
+     * internal storage and should not be altered.
+     * @return The SNPs
+     */
+    public int[] getSnps()
+    {
+        return missingSnps;
+    }
+
+    /**
+     * Returns where the missing samples of each SNP start in the array
+     * returned by getSamples.  The returned array is the internal storage and
+     * should not be altered.
+     * @return The offsets
+     */
+    public int[] getSnpOffsets()
+    {
+        return snpOffsets;
+    }
+
+    /**
+     * Returns the missing samples of every SNP.  The returned array is the
+     * internal storage and should not be altered.
+     * @return The samples
+     */
+    public int[] getSamples()
+    {
+        return missingSamples;
+    }
+
+    /**
+     * Copies a data set a row at a time.  Used as the starting point of
+     * imputation so that only the missing cells need to be visited.
+     * @param data The data set
+     * @return The copy
+     */
+    public static byte[][] copy(byte[][] data)
+    {
+        byte[][] copy = new byte[data.length][];
+        for (int s = 0; s < data.length; s++)
+        {
+            copy[s] = new byte[data[s].length];
+            System.arraycopy(data[s], 0, copy[s], 0, data[s].length);
+        }
+        return copy;
+    }
+
+    private final int[] sampleOffsets;
+    private final int[] missingSnps;
+    private final int[] snpOffsets;
+    private final int[] missingSamples;
+}
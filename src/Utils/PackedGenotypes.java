@@ -0,0 +1,300 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.util.Arrays;
+
+/**
+ * Stores genotypes packed into 64-bit bitplanes.  Each row (normally a SNP)
+ * is stored as three planes per word of 64 columns: a plane with a bit set
+ * for every heterozygote (genotype 1), a plane with a bit set for every
+ * genotype 2 and a plane with a bit set for every known genotype.  Genotype 0
+ * is therefore a known bit with neither of the other two bits set.  Planes
+ * for a word are stored next to each other so a row can be read sequentially.
+ * @author Daniel Money
+ */
+public class PackedGenotypes
+{
+    /**
+     * Constructor.  Packs each row of the given array.
+     * @param data The genotypes to pack.  Missing data is coded as -1.
+     */
+    public PackedGenotypes(byte[][] data)
+    {
+        this(data.length, data[0].length);
+        for (int i = 0; i < rows; i++)
+        {
+            byte[] d = data[i];
+            long[] r = packed[i];
+            for (int j = 0; j < columns; j++)
+            {
+                set(r, j, d[j]);
+            }
+        }
+    }
+
+    /**
+     * Constructor.  Creates packed genotypes with every genotype missing, to
+     * be filled by pack.
+     * @param rows The number of rows
+     * @param columns The number of columns
+     */
+    public PackedGenotypes(int rows, int columns)
+    {
+        this(new long[rows][((columns + 63) / 64) * 3], columns);
+    }
+
+    // Wraps already packed rows
+    PackedGenotypes(long[][] packed, int columns)
+    {
+        this.rows = packed.length;
+        this.columns = columns;
+        this.words = (columns + 63) / 64;
+        this.packed = packed;
+    }
+
+    /**
+     * Packs the columns, rather than the rows, of the given array.  Saves having
+     * to create a transposed copy of the data to get SNP-major packed data from
+     * sample-major data.
+     * @param data The genotypes to pack.  Missing data is coded as -1.
+     * @return Packed genotypes where row i is column i of data
+     */
+    public static PackedGenotypes transposed(byte[][] data)
+    {
+        PackedGenotypes p = new PackedGenotypes(data[0].length, data.length);
+        for (int j = 0; j < data.length; j++)
+        {
+            byte[] d = data[j];
+            for (int i = 0; i < d.length; i++)
+            {
+                set(p.packed[i], j, d[i]);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Packs some of the columns of the given array.  Used to gather scattered
+     * columns into a small packed block.
+     * @param data The genotypes.  Missing data is coded as -1.
+     * @param columns Array containing the columns to pack
+     * @param start Position in columns of the first column to pack
+     * @param number The number of columns to pack
+     * @return Packed genotypes where column j is column columns[start + j]
+     * of data
+     */
+    public static PackedGenotypes gather(byte[][] data, int[] columns, int start, int number)
+    {
+        PackedGenotypes p = new PackedGenotypes(data.length, number);
+        p.pack(data, columns, start, number);
+        return p;
+    }
+
+    /**
+     * Packs some of the columns of the given array into these packed
+     * genotypes, replacing what was there, so a block can be reused for each
+     * set of columns gathered.  Columns past the number packed are set to
+     * missing.
+     * @param data The genotypes, with as many rows as these packed genotypes.
+     * Missing data is coded as -1.
+     * @param columns Array containing the columns to pack
+     * @param start Position in columns of the first column to pack
+     * @param number The number of columns to pack.  No more than the number
+     * of columns of these packed genotypes.
+     */
+    public void pack(byte[][] data, int[] columns, int start, int number)
+    {
+        for (int i = 0; i < rows; i++)
+        {
+            byte[] d = data[i];
+            long[] r = packed[i];
+            Arrays.fill(r, 0L);
+            for (int j = 0; j < number; j++)
+            {
+                set(r, j, d[columns[start + j]]);
+            }
+        }
+    }
+
+    /**
+     * Creates packed genotypes containing only some of the columns
+     * @param columns The columns to keep, in the order they should appear
+     * @return Packed genotypes of the given columns
+     */
+    public PackedGenotypes subset(int[] columns)
+    {
+        PackedGenotypes p = new PackedGenotypes(rows, columns.length);
+        for (int i = 0; i < rows; i++)
+        {
+            long[] r = packed[i];
+            long[] n = p.packed[i];
+            for (int k = 0; k < columns.length; k++)
+            {
+                int from = (columns[k] >>> 6) * 3;
+                int shift = columns[k] & 63;
+                int to = (k >>> 6) * 3;
+                int toshift = k & 63;
+                for (int plane = 0; plane < 3; plane++)
+                {
+                    n[to + plane] |= ((r[from + plane] >>> shift) & 1L) << toshift;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Joins the rows of two sets of packed genotypes, with the rows of the first
+     * followed by the rows of the second.  Rows are shared rather than copied.
+     * @param a The first packed genotypes
+     * @param b The second packed genotypes.  Must have the same number of columns
+     * as the first.
+     * @return The joined packed genotypes
+     */
+    public static PackedGenotypes join(PackedGenotypes a, PackedGenotypes b)
+    {
+        long[][] p = new long[a.rows + b.rows][];
+        System.arraycopy(a.packed, 0, p, 0, a.rows);
+        System.arraycopy(b.packed, 0, p, a.rows, b.rows);
+        return new PackedGenotypes(p, a.columns);
+    }
+
+    static void set(long[] r, int j, byte g)
+    {
+        if (g >= 0)
+        {
+            int w = (j >>> 6) * 3;
+            long bit = 1L << (j & 63);
+            r[w + KNOWN] |= bit;
+            if (g == 1)
+            {
+                r[w + ONE] |= bit;
+            }
+            if (g == 2)
+            {
+                r[w + TWO] |= bit;
+            }
+        }
+    }
+
+    /**
+     * Gets the genotype at the given position
+     * @param i The row
+     * @param j The column
+     * @return The genotype, -1 if missing
+     */
+    public byte get(int i, int j)
+    {
+        long[] r = packed[i];
+        int w = (j >>> 6) * 3;
+        long bit = 1L << (j & 63);
+        if ((r[w + KNOWN] & bit) == 0)
+        {
+            return -1;
+        }
+        if ((r[w + ONE] & bit) != 0)
+        {
+            return 1;
+        }
+        if ((r[w + TWO] & bit) != 0)
+        {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the packed words for a row.  For word w the heterozygote plane is
+     * at position 3w, the genotype 2 plane at 3w+1 and the known plane at 3w+2.
+     * The returned array is the internal storage and should not be altered.
+     * @param i The row
+     * @return The packed row
+     */
+    public long[] row(int i)
+    {
+        return packed[i];
+    }
+
+    /**
+     * Counts the number of each genotype in a row
+     * @param i The row
+     * @return Array of length three giving the count of genotypes 0, 1 and 2
+     */
+    public int[] counts(int i)
+    {
+        long[] r = packed[i];
+        int c1 = 0;
+        int c2 = 0;
+        int ck = 0;
+        for (int w = 0; w < r.length; w += 3)
+        {
+            c1 += Long.bitCount(r[w + ONE]);
+            c2 += Long.bitCount(r[w + TWO]);
+            ck += Long.bitCount(r[w + KNOWN]);
+        }
+        return new int[] {ck - c1 - c2, c1, c2};
+    }
+
+    /**
+     * Get the number of rows
+     * @return The number of rows
+     */
+    public int rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Get the number of columns
+     * @return The number of columns
+     */
+    public int columns()
+    {
+        return columns;
+    }
+
+    /**
+     * Get the number of 64 column words in each row
+     * @return The number of words
+     */
+    public int words()
+    {
+        return words;
+    }
+
+    /**
+     * Offset of the heterozygote plane within a word
+     */
+    public static final int ONE = 0;
+
+    /**
+     * Offset of the genotype 2 plane within a word
+     */
+    public static final int TWO = 1;
+
+    /**
+     * Offset of the known genotype plane within a word
+     */
+    public static final int KNOWN = 2;
+
+    private final int rows;
+    private final int columns;
+    private final int words;
+    private final long[][] packed;
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Symmetric matrix of weights between samples.  Only the pairs above the
+ * diagonal are stored, one after another a row at a time, so a matrix takes
+ * half the memory of a full matrix.  Weights are stored as doubles as
+ * rounding them any further can reorder samples whose weights nearly tie,
+ * changing which samples are imputed from.  The diagonal is always zero.
+ * As the number of pairs can be larger than an array can hold, pairs are
+ * stored in sections of up to 2^27 doubles.
+ * <p>
+ * The matrix can be held in memory or memory mapped from a file.  The file
+ * consists of a header (a magic number and the number of samples) followed
+ * by the stored pairs.  The magic number is only written once every pair has
+ * been written, so a file from an interrupted run is never read back.
+ * @author Daniel Money
+ */
+public class SampleWeights
+{
+    /**
+     * Creates a matrix held in memory with every weight zero
+     * @param samples The number of samples
+     */
+    public SampleWeights(int samples)
+    {
+        this.samples = samples;
+        long pairs = pairs(samples);
+        sections = new DoubleBuffer[sections(pairs)];
+        for (int s = 0; s < sections.length; s++)
+        {
+            sections[s] = DoubleBuffer.wrap(new double[sectionSize(pairs, s)]);
+        }
+        maps = null;
+        file = null;
+    }
+
+    private SampleWeights(File file, int samples, FileChannel.MapMode mode) throws IOException
+    {
+        this.samples = samples;
+        this.file = file;
+        long pairs = pairs(samples);
+        sections = new DoubleBuffer[sections(pairs)];
+        maps = new MappedByteBuffer[sections.length];
+        try (RandomAccessFile raf = new RandomAccessFile(file,
+                (mode == FileChannel.MapMode.READ_ONLY) ? "r" : "rw"))
+        {
+            if (mode != FileChannel.MapMode.READ_ONLY)
+            {
+                // A new file is all zeros, including where the magic number goes
+                raf.setLength(0);
+                raf.setLength(HEADER + pairs * 8);
+                raf.seek(4);
+                raf.writeInt(samples);
+            }
+            else if (raf.length() != HEADER + pairs * 8)
+            {
+                throw new IOException("Sample weight file is the wrong length: " + file);
+            }
+            FileChannel channel = raf.getChannel();
+            for (int s = 0; s < sections.length; s++)
+            {
+                maps[s] = channel.map(mode, HEADER + ((long) s << SHIFT) * 8,
+                        (long) sectionSize(pairs, s) * 8);
+                sections[s] = maps[s].asDoubleBuffer();
+            }
+        }
+    }
+
+    /**
+     * Creates a matrix memory mapped from a new file, with every weight zero.
+     * Once all weights have been set complete should be called so the file
+     * can be read back.
+     * @param file The file.  Overwritten if it exists.
+     * @param samples The number of samples
+     * @return The matrix
+     * @throws IOException If there is a problem creating the file
+     */
+    public static SampleWeights create(File file, int samples) throws IOException
+    {
+        return new SampleWeights(file, samples, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * Memory maps a matrix from a file written by create and complete.  The
+     * returned matrix is read only.
+     * @param file The file
+     * @return The matrix
+     * @throws IOException If there is a problem reading the file or it is not
+     * a complete sample weight file
+     */
+    public static SampleWeights read(File file) throws IOException
+    {
+        int samples;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            if ((raf.length() < HEADER) || (raf.readInt() != MAGIC))
+            {
+                throw new IOException("Not a complete sample weight file: " + file);
+            }
+            samples = raf.readInt();
+        }
+        return new SampleWeights(file, samples, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Marks a matrix created by create as complete.  Every weight is flushed
+     * to disk before the magic number is written.  Does nothing for a matrix
+     * held in memory.
+     * @throws IOException If there is a problem writing to the file
+     */
+    public void complete() throws IOException
+    {
+        if (maps != null)
+        {
+            for (MappedByteBuffer m: maps)
+            {
+                m.force();
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.writeInt(MAGIC);
+                raf.getChannel().force(false);
+            }
+        }
+    }
+
+    /**
+     * Get the number of samples
+     * @return The number of samples
+     */
+    public int size()
+    {
+        return samples;
+    }
+
+    /**
+     * Gets the weight between two samples
+     * @param i The first sample
+     * @param j The second sample
+     * @return The weight
+     */
+    public double get(int i, int j)
+    {
+        if (i == j)
+        {
+            return 0.0;
+        }
+        long p = (i < j) ? index(i, j) : index(j, i);
+        return sections[(int) (p >>> SHIFT)].get((int) (p & MASK));
+    }
+
+    /**
+     * Sets the weight between two samples.  Different pairs can be set from
+     * different threads at the same time.
+     * @param i The first sample
+     * @param j The second sample.  Must be different from the first.
+     * @param v The weight
+     */
+    public void set(int i, int j, double v)
+    {
+        long p = (i < j) ? index(i, j) : index(j, i);
+        sections[(int) (p >>> SHIFT)].put((int) (p & MASK), v);
+    }
+
+    /**
+     * Gets the weights between a sample and every sample
+     * @param i The sample
+     * @param row Array to fill with the weights, of length at least the
+     * number of samples.  Entry i is set to zero.
+     */
+    public void row(int i, double[] row)
+    {
+        for (int j = 0; j < i; j++)
+        {
+            long p = index(j, i);
+            row[j] = sections[(int) (p >>> SHIFT)].get((int) (p & MASK));
+        }
+        row[i] = 0.0;
+        // The rest of the row is stored contiguously
+        long p = index(i, i + 1);
+        for (int j = i + 1; j < samples; j++, p++)
+        {
+            row[j] = sections[(int) (p >>> SHIFT)].get((int) (p & MASK));
+        }
+    }
+
+    // Position of pair (i,j), with i less than j
+    private long index(int i, int j)
+    {
+        return (long) i * samples - (long) i * (i + 1) / 2 + (j - i - 1);
+    }
+
+    private static long pairs(int samples)
+    {
+        return (long) samples * (samples - 1) / 2;
+    }
+
+    private static int sections(long pairs)
+    {
+        return (int) ((pairs + MASK) >>> SHIFT);
+    }
+
+    private static int sectionSize(long pairs, int s)
+    {
+        return (int) Math.min(1L << SHIFT, pairs - ((long) s << SHIFT));
+    }
+
+    private final int samples;
+    private final DoubleBuffer[] sections;
+    private final MappedByteBuffer[] maps;
+    private final File file;
+
+    // Files of float weights had the magic number 0x4c495357 so are not read
+    // back as doubles
+    private static final int MAGIC = 0x4c495344;
+    private static final int HEADER = 8;
+    // Sections of 2^27 doubles are 1GB, within the limit on a single mapping
+    private static final int SHIFT = 27;
+    private static final long MASK = (1L << SHIFT) - 1;
+}
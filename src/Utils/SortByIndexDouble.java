@@ -51,14 +51,7 @@ public class SortByIndexDouble implements Comparator<Integer>
     @Override
     public int compare(Integer i, Integer j)
     {
-        if (reverse)
-        {
-            return Double.compare(values[j], values[i]);
-        }
-        else
-        {
-            return Double.compare(values[i], values[j]);
-        }
+        return compare((int) i, (int) j);
     }
 
     /**
@@ -76,7 +69,108 @@ public class SortByIndexDouble implements Comparator<Integer>
         return index;
     }
 
+    /**
+     * Produce a sorted list of indicies for the entire array without
+     * allocating any memory.  Gives the same order as sort.
+     * @param index Array to put the sorted indicies in.  Must be the same
+     * length as the double array.
+     * @param temp Working space.  Must be the same length as the double array.
+     */
+    public void sort(int[] index, int[] temp)
+    {
+        sort(values, reverse, index, temp);
+    }
+    
+    /**
+     * Produce a sorted list of indicies for an entire double array without
+     * allocating any memory, not even a comparator, so it can be called once
+     * per sample on a hot path.  Gives the same order as sort.
+     * @param values The double array used to sort the indicies
+     * @param reverse If true sorts in reverse order
+     * @param index Array to put the sorted indicies in.  Must be the same
+     * length as the double array.
+     * @param temp Working space.  Must be the same length as the double array.
+     */
+    public static void sort(double[] values, boolean reverse, int[] index, int[] temp)
+    {
+        int n = values.length;
+        for (int i = 0; i < n; i++)
+        {
+            index[i] = i;
+        }
+        
+        // Insertion sort short runs then merge them.  Both are stable so
+        // equal values stay in index order, as with sort.
+        for (int start = 0; start < n; start += RUN)
+        {
+            int end = Math.min(start + RUN, n);
+            for (int i = start + 1; i < end; i++)
+            {
+                int v = index[i];
+                int j = i - 1;
+                while ((j >= start) && (compare(values, reverse, index[j], v) > 0))
+                {
+                    index[j + 1] = index[j];
+                    j--;
+                }
+                index[j + 1] = v;
+            }
+        }
+        
+        int[] from = index;
+        int[] to = temp;
+        for (int width = RUN; width < n; width *= 2)
+        {
+            for (int start = 0; start < n; start += 2 * width)
+            {
+                int mid = Math.min(start + width, n);
+                int end = Math.min(start + 2 * width, n);
+                int i = start;
+                int j = mid;
+                int o = start;
+                while ((i < mid) && (j < end))
+                {
+                    to[o++] = (compare(values, reverse, from[j], from[i]) < 0) ? from[j++] : from[i++];
+                }
+                while (i < mid)
+                {
+                    to[o++] = from[i++];
+                }
+                while (j < end)
+                {
+                    to[o++] = from[j++];
+                }
+            }
+            int[] t = from;
+            from = to;
+            to = t;
+        }
+        if (from != index)
+        {
+            System.arraycopy(from, 0, index, 0, n);
+        }
+    }
+    
+    private int compare(int i, int j)
+    {
+        return compare(values, reverse, i, j);
+    }
+    
+    private static int compare(double[] values, boolean reverse, int i, int j)
+    {
+        if (reverse)
+        {
+            return Double.compare(values[j], values[i]);
+        }
+        else
+        {
+            return Double.compare(values[i], values[j]);
+        }
+    }
+
     private final double[] values;
     private final boolean reverse;
+    
+    private static final int RUN = 32;
 }    
 
@@ -0,0 +1,207 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Schedules all-against-all pairwise calculations.  The upper triangle of
+ * pairs is covered by square tiles, small enough that the rows and columns
+ * of a tile fit in cache together, which are then run on a work stealing
+ * ForkJoin pool.  As every tile is about the same size, and idle threads
+ * steal tiles from busy ones, all threads stay busy until the end rather than
+ * waiting on a few long rows.
+ * @author Daniel Money
+ */
+public class TileScheduler
+{
+    /**
+     * Creates a scheduler for all pairs of a number of items
+     * @param size The number of items
+     * @param tile The length of the side of a tile
+     */
+    public TileScheduler(int size, int tile)
+    {
+        this(size, null, tile);
+    }
+
+    /**
+     * Creates a scheduler for pairs of items where item i is only paired with
+     * items from i + 1 up to (but not including) end[i].  Values in end must
+     * never decrease.
+     * @param size The number of items
+     * @param end The end of the pairs for each item.  Null for all pairs.
+     * @param tile The length of the side of a tile
+     */
+    public TileScheduler(int size, int[] end, int tile)
+    {
+        this(size, 0, end, tile);
+    }
+
+    private TileScheduler(int size, int split, int[] end, int tile)
+    {
+        this.size = size;
+        this.split = split;
+        this.end = end;
+        this.tile = tile;
+    }
+
+    /**
+     * Creates a scheduler for all pairs between two sets of items, but not
+     * pairs within a set.  The first set is items 0 to rows - 1 and the second
+     * items rows to rows + columns - 1.
+     * @param rows The number of items in the first set
+     * @param columns The number of items in the second set
+     * @param tile The length of the side of a tile
+     * @return The scheduler
+     */
+    public static TileScheduler rectangle(int rows, int columns, int tile)
+    {
+        return new TileScheduler(rows + columns, rows, null, tile);
+    }
+
+    /**
+     * Calculates a tile size such that two tiles' worth of rows fit in the
+     * cache.
+     * @param bytesPerRow The number of bytes read for each item
+     * @return The tile size
+     */
+    public static int tileSize(long bytesPerRow)
+    {
+        long t = CACHE / (2 * Math.max(1, bytesPerRow));
+        return (int) Math.max(MIN_TILE, Math.min(MAX_TILE, t));
+    }
+
+    /**
+     * Runs the work for every tile on the given pool.  Returns once all tiles
+     * are done.  The pool is shared with other work rather than a new one
+     * started for each run.
+     * @param work The work to be done for each tile
+     * @param progress Progress is updated with the number of pairs done as
+     * each tile finishes
+     * @param pool The pool to run on
+     */
+    public void run(Tile work, Progress progress, ForkJoinPool pool)
+    {
+        // Tiles on the diagonal are run first, before any other tile, so each
+        // item has been paired with the items next to it before it's paired
+        // with items further away.  Work that learns from the pairs done so
+        // far, such as skipping pairs that can't make the top n, learns the
+        // most from the closest pairs.
+        List<int[]> diagonal = new ArrayList<>();
+        List<int[]> tiles = new ArrayList<>();
+        int rmax = (split > 0) ? split : size;
+        for (int r = 0; r < rmax; r += tile)
+        {
+            int rend = Math.min(r + tile, rmax);
+            int cmax = (end == null) ? size : end[rend - 1];
+            for (int c = Math.max(r, split); c < cmax; c += tile)
+            {
+                int[] t = new int[] {r, rend, c, Math.min(c + tile, cmax)};
+                if (c == r)
+                {
+                    diagonal.add(t);
+                }
+                else
+                {
+                    tiles.add(t);
+                }
+            }
+        }
+
+        pool.invoke(new Split(diagonal, 0, diagonal.size(), work, progress));
+        pool.invoke(new Split(tiles, 0, tiles.size(), work, progress));
+    }
+
+    /**
+     * Sets the size of cache (per core) that tiles are sized for.  Defaults
+     * to 256KB.
+     * @param bytes The size of cache in bytes
+     */
+    public static void setCacheSize(long bytes)
+    {
+        CACHE = bytes;
+    }
+
+    /**
+     * The work to be done on a single tile
+     */
+    public interface Tile
+    {
+        /**
+         * Does the work for a tile.  Only pairs (i,j) with j greater than i
+         * (and less than the end of i if ends were given) should be calculated.
+         * @param rstart First row of the tile
+         * @param rend End (exclusive) of the rows of the tile
+         * @param cstart First column of the tile
+         * @param cend End (exclusive) of the columns of the tile
+         * @return The number of pairs calculated
+         */
+        public int compute(int rstart, int rend, int cstart, int cend);
+    }
+
+    // Recursively splits the list of tiles in half so that neighbouring tiles
+    // (which share rows) tend to run on the same thread unless stolen.
+    private static class Split extends RecursiveAction
+    {
+        public Split(List<int[]> tiles, int start, int end, Tile work, Progress progress)
+        {
+            this.tiles = tiles;
+            this.start = start;
+            this.end = end;
+            this.work = work;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start == 1)
+            {
+                int[] t = tiles.get(start);
+                progress.done(work.compute(t[0], t[1], t[2], t[3]));
+            }
+            else if (end > start)
+            {
+                int mid = (start + end) >>> 1;
+                invokeAll(new Split(tiles, start, mid, work, progress),
+                        new Split(tiles, mid, end, work, progress));
+            }
+        }
+
+        private final List<int[]> tiles;
+        private final int start;
+        private final int end;
+        private final Tile work;
+        private final Progress progress;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final int size;
+    private final int split;
+    private final int[] end;
+    private final int tile;
+
+    private static long CACHE = 256 * 1024;
+    private static final int MIN_TILE = 16;
+    private static final int MAX_TILE = 1024;
+}
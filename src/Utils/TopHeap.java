@@ -0,0 +1,282 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of the top n integer ids based on a float score.  Higher scores
+ * are better and in case of ties the lower id is better, which is the same
+ * ordering as a reversed TopQueue.  Stored as a bounded min-heap of primitives
+ * so, unlike TopQueue, there's no boxing and no synchronization.  Each thread
+ * should therefore have its own heaps, which can be merged with addAll.
+ * @author Daniel Money
+ */
+public class TopHeap
+{
+    /**
+     * Constructor
+     * @param top The number of top entries to store
+     */
+    public TopHeap(int top)
+    {
+        this.top = top;
+        ids = new int[top];
+        scores = new float[top];
+        size = 0;
+    }
+
+    /**
+     * Attempts to add a new entry
+     * @param id The entry
+     * @param score The entry's score
+     * @return Whether the entry was added.  Returns false if the entry
+     * was worse than the worst entry already in the queue and the queue is full.
+     */
+    public boolean add(int id, float score)
+    {
+        if (size < top)
+        {
+            // Sift up from the bottom
+            int i = size;
+            size++;
+            while (i > 0)
+            {
+                int parent = (i - 1) >>> 1;
+                if (!worse(id, score, ids[parent], scores[parent]))
+                {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return true;
+        }
+        if ((top == 0) || !worse(ids[0], scores[0], id, score))
+        {
+            return false;
+        }
+        siftDown(ids, scores, size, id, score);
+        return true;
+    }
+
+    /**
+     * Adds all the entries in another heap to this one
+     * @param other The other heap
+     */
+    public void addAll(TopHeap other)
+    {
+        for (int i = 0; i < other.size; i++)
+        {
+            add(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Returns whether the heap holds the maximum number of entries
+     * @return Whether the heap is full
+     */
+    public boolean isFull()
+    {
+        return size == top;
+    }
+
+    /**
+     * Returns the score of the worst entry in the heap
+     * @return The worst score, or negative infinity if the heap is empty
+     */
+    public float getMinimum()
+    {
+        if (size == 0)
+        {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return scores[0];
+    }
+
+    /**
+     * Returns the number of entries in the heap
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the ids in the heap ordered from best to worst
+     * @return Ordered ids
+     */
+    public int[] getIds()
+    {
+        int[] si = ids.clone();
+        float[] ss = scores.clone();
+        sort(si, ss, size);
+        return (size == top) ? si : Arrays.copyOf(si, size);
+    }
+
+    /**
+     * Returns the scores in the heap ordered from best to worst.  The order
+     * matches that returned by getIds.
+     * @return Ordered scores
+     */
+    public float[] getScores()
+    {
+        int[] si = ids.clone();
+        float[] ss = scores.clone();
+        sort(si, ss, size);
+        return (size == top) ? ss : Arrays.copyOf(ss, size);
+    }
+
+    /**
+     * Returns the ids in the heap as an ordered list
+     * @return Ordered list of ids
+     */
+    public List<Integer> getList()
+    {
+        int[] si = getIds();
+        List<Integer> list = new ArrayList<>(si.length);
+        for (int i: si)
+        {
+            list.add(i);
+        }
+        return list;
+    }
+
+    /**
+     * Writes the heap to a buffer so it can be restored later by read.  Takes
+     * bytes(top) bytes.
+     * @param buffer The buffer to write to
+     */
+    public void write(ByteBuffer buffer)
+    {
+        buffer.putInt(size);
+        for (int i = 0; i < top; i++)
+        {
+            buffer.putInt(ids[i]);
+        }
+        for (int i = 0; i < top; i++)
+        {
+            buffer.putFloat(scores[i]);
+        }
+    }
+
+    /**
+     * Reads a heap previously written by write.  The heap is restored exactly
+     * so adding further entries gives the same result as if it had never been
+     * written.
+     * @param buffer The buffer to read from
+     * @param top The number of top entries stored by the written heap
+     * @return The heap
+     */
+    public static TopHeap read(ByteBuffer buffer, int top)
+    {
+        TopHeap heap = new TopHeap(top);
+        heap.size = buffer.getInt();
+        for (int i = 0; i < top; i++)
+        {
+            heap.ids[i] = buffer.getInt();
+        }
+        for (int i = 0; i < top; i++)
+        {
+            heap.scores[i] = buffer.getFloat();
+        }
+        return heap;
+    }
+
+    /**
+     * Returns the number of bytes write uses for a heap
+     * @param top The number of top entries stored by the heap
+     * @return The number of bytes
+     */
+    public static int bytes(int top)
+    {
+        return 4 + 8 * top;
+    }
+
+    // Heap sort.  As the root is always the worst entry repeatedly moving it to
+    // the end leaves the arrays ordered from best to worst.
+    private static void sort(int[] si, float[] ss, int size)
+    {
+        for (int n = size - 1; n > 0; n--)
+        {
+            int id = si[n];
+            float score = ss[n];
+            si[n] = si[0];
+            ss[n] = ss[0];
+            siftDown(si, ss, n, id, score);
+        }
+    }
+
+    // Places id / score at the root of a heap of size n and sifts it down
+    private static void siftDown(int[] ids, float[] scores, int n, int id, float score)
+    {
+        int i = 0;
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= n)
+            {
+                break;
+            }
+            if ((child + 1 < n) && worse(ids[child + 1], scores[child + 1], ids[child], scores[child]))
+            {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], id, score))
+            {
+                break;
+            }
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    // Is entry 1 worse than entry 2?
+    private static boolean worse(int id1, float score1, int id2, float score2)
+    {
+        int c = Float.compare(score1, score2);
+        if (c != 0)
+        {
+            return c < 0;
+        }
+        return id1 > id2;
+    }
+
+    private final int top;
+    private final int[] ids;
+    private final float[] scores;
+    private int size;
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.util.Arrays;
+
+/**
+ * As TopHeap but with double scores, for when rounding scores to floats
+ * could change which entries are kept or their order.  Higher scores are
+ * better and in case of ties the lower id is better.
+ * @author Daniel Money
+ */
+public class TopHeapDouble
+{
+    /**
+     * Constructor
+     * @param top The number of top entries to store
+     */
+    public TopHeapDouble(int top)
+    {
+        this.top = top;
+        ids = new int[top];
+        scores = new double[top];
+        size = 0;
+    }
+
+    /**
+     * Attempts to add a new entry
+     * @param id The entry
+     * @param score The entry's score
+     * @return Whether the entry was added.  Returns false if the entry
+     * was worse than the worst entry already in the queue and the queue is full.
+     */
+    public boolean add(int id, double score)
+    {
+        if (size < top)
+        {
+            // Sift up from the bottom
+            int i = size;
+            size++;
+            while (i > 0)
+            {
+                int parent = (i - 1) >>> 1;
+                if (!worse(id, score, ids[parent], scores[parent]))
+                {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return true;
+        }
+        if ((top == 0) || !worse(ids[0], scores[0], id, score))
+        {
+            return false;
+        }
+        siftDown(ids, scores, size, id, score);
+        return true;
+    }
+
+    /**
+     * Adds all the entries in another heap to this one
+     * @param other The other heap
+     */
+    public void addAll(TopHeapDouble other)
+    {
+        for (int i = 0; i < other.size; i++)
+        {
+            add(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Returns the number of entries in the heap
+     * @return The number of entries
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the ids in the heap ordered from best to worst
+     * @return Ordered ids
+     */
+    public int[] getIds()
+    {
+        int[] si = ids.clone();
+        double[] ss = scores.clone();
+        sort(si, ss, size);
+        return (size == top) ? si : Arrays.copyOf(si, size);
+    }
+
+    /**
+     * Returns the scores in the heap ordered from best to worst.  The order
+     * matches that returned by getIds.
+     * @return Ordered scores
+     */
+    public double[] getScores()
+    {
+        int[] si = ids.clone();
+        double[] ss = scores.clone();
+        sort(si, ss, size);
+        return (size == top) ? ss : Arrays.copyOf(ss, size);
+    }
+
+    // Heap sort.  As the root is always the worst entry repeatedly moving it to
+    // the end leaves the arrays ordered from best to worst.
+    private static void sort(int[] si, double[] ss, int size)
+    {
+        for (int n = size - 1; n > 0; n--)
+        {
+            int id = si[n];
+            double score = ss[n];
+            si[n] = si[0];
+            ss[n] = ss[0];
+            siftDown(si, ss, n, id, score);
+        }
+    }
+
+    // Places id / score at the root of a heap of size n and sifts it down
+    private static void siftDown(int[] ids, double[] scores, int n, int id, double score)
+    {
+        int i = 0;
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= n)
+            {
+                break;
+            }
+            if ((child + 1 < n) && worse(ids[child + 1], scores[child + 1], ids[child], scores[child]))
+            {
+                child++;
+            }
+            if (!worse(ids[child], scores[child], id, score))
+            {
+                break;
+            }
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    // Is entry 1 worse than entry 2?
+    private static boolean worse(int id1, double score1, int id2, double score2)
+    {
+        int c = Double.compare(score1, score2);
+        if (c != 0)
+        {
+            return c < 0;
+        }
+        return id1 > id2;
+    }
+
+    private final int top;
+    private final int[] ids;
+    private final double[] scores;
+    private int size;
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Checkpoints blocks of TopHeaps to a file so that only the heaps currently
+ * being worked on need to be in memory.  Work is assumed to proceed in passes
+ * and every block has two slots in the file, one for the state after an even
+ * number of passes and one for after an odd number.  A pass writes to the
+ * slots not being read from and only once the whole pass is done is the count
+ * of completed passes in the header updated.  If a run is interrupted the
+ * file therefore always holds a consistent state to resume from.
+ * @author Daniel Money
+ */
+public class TopHeapFile implements Closeable
+{
+    /**
+     * Opens a checkpoint file.  If the file exists and was created with the
+     * same parameters it is reused, so work can resume from the last
+     * completed pass, else a new file is created.
+     * @param file The file
+     * @param number The total number of heaps
+     * @param top The size of each heap
+     * @param block The number of heaps in each block
+     * @param tag A value identifying what the heaps are for, including the
+     * data they were calculated from.  An existing file with a different tag
+     * is not reused.
+     * @throws IOException If there is a problem with the file
+     */
+    public TopHeapFile(File file, int number, int top, int block, long tag) throws IOException
+    {
+        this.number = number;
+        this.top = top;
+        this.block = block;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        long length = HEADER + 2L * number * TopHeap.bytes(top);
+        if ((raf.length() == length) && (raf.readInt() == MAGIC) && (raf.readInt() == number)
+                && (raf.readInt() == top) && (raf.readInt() == block) && (raf.readLong() == tag))
+        {
+            completed = raf.readInt();
+        }
+        else
+        {
+            // A new file is all zeros, which reads back as empty heaps
+            raf.setLength(0);
+            raf.setLength(length);
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(number);
+            raf.writeInt(top);
+            raf.writeInt(block);
+            raf.writeLong(tag);
+            raf.writeInt(0);
+            completed = 0;
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Returns the number of passes completed
+     * @return The number of passes completed
+     */
+    public int completed()
+    {
+        return completed;
+    }
+
+    /**
+     * Records that a pass has completed.  Everything written so far is
+     * flushed to disk before the count is updated.
+     * @param passes The number of passes now completed
+     * @throws IOException If there is a problem writing to the file
+     */
+    public void setCompleted(int passes) throws IOException
+    {
+        channel.force(false);
+        raf.seek(COMPLETED);
+        raf.writeInt(passes);
+        channel.force(false);
+        completed = passes;
+    }
+
+    /**
+     * Reads a block of heaps
+     * @param b The block
+     * @param passes The number of passes that had updated the block when
+     * it was written
+     * @return The heaps
+     * @throws IOException If there is a problem reading the file
+     */
+    public TopHeap[] read(int b, int passes) throws IOException
+    {
+        TopHeap[] heaps = new TopHeap[size(b)];
+        ByteBuffer buffer = map(b, passes, FileChannel.MapMode.READ_ONLY);
+        for (int i = 0; i < heaps.length; i++)
+        {
+            heaps[i] = TopHeap.read(buffer, top);
+        }
+        return heaps;
+    }
+
+    /**
+     * Reads the number of entries in each heap of a block without reading
+     * the heaps themselves
+     * @param b The block
+     * @param passes The number of passes that had updated the block when
+     * it was written
+     * @return The number of entries in each heap
+     * @throws IOException If there is a problem reading the file
+     */
+    public int[] sizes(int b, int passes) throws IOException
+    {
+        int[] sizes = new int[size(b)];
+        ByteBuffer buffer = map(b, passes, FileChannel.MapMode.READ_ONLY);
+        int bytes = TopHeap.bytes(top);
+        for (int i = 0; i < sizes.length; i++)
+        {
+            sizes[i] = buffer.getInt(i * bytes);
+        }
+        return sizes;
+    }
+
+    /**
+     * Writes a block of heaps
+     * @param b The block
+     * @param passes The number of passes that have updated the block
+     * @param heaps The heaps
+     * @throws IOException If there is a problem writing to the file
+     */
+    public void write(int b, int passes, TopHeap[] heaps) throws IOException
+    {
+        ByteBuffer buffer = map(b, passes, FileChannel.MapMode.READ_WRITE);
+        for (TopHeap h: heaps)
+        {
+            h.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        raf.close();
+    }
+
+    private int size(int b)
+    {
+        return Math.min(block, number - b * block);
+    }
+
+    private MappedByteBuffer map(int b, int passes, FileChannel.MapMode mode) throws IOException
+    {
+        long bytes = TopHeap.bytes(top);
+        int size = size(b);
+        long offset = HEADER + (2L * b * block + (long) (passes % 2) * size) * bytes;
+        return channel.map(mode, offset, size * bytes);
+    }
+
+    private final int number;
+    private final int top;
+    private final int block;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private int completed;
+
+    private static final int MAGIC = 0x4c495448;
+    private static final int COMPLETED = 24;
+    private static final int HEADER = 28;
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Correlation;
+
+import Utils.MappedGenotypes;
+import Utils.PackedGenotypes;
+import Utils.Tests;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the LD calculations
+ * @author Daniel Money
+ */
+public class CorrelationTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Correlation.setSilent(true);
+        pruning();
+        mapped();
+        System.out.println("CorrelationTest passed");
+    }
+
+    // Skipping pairs, and whole bands of SNPs, that can't make the top n
+    // doesn't change the top n, with or without missing data
+    private static void pruning() throws Exception
+    {
+        for (double missing: new double[] {0.0, 0.05})
+        {
+            PackedGenotypes data = PackedGenotypes.transposed(
+                    polymorphic(Tests.genotypes(300, 600, missing, 3)));
+            long pairs = (long) data.rows() * (data.rows() - 1) / 2;
+
+            final AtomicLong pearson = new AtomicLong();
+            Correlation counted = new Pearson()
+            {
+                @Override
+                public double calculate(PackedGenotypes data, int i, int j)
+                {
+                    pearson.incrementAndGet();
+                    return super.calculate(data, i, j);
+                }
+
+                @Override
+                protected double calculate(PackedGenotypes data, int i, int j, double limit,
+                        Scratch scratch)
+                {
+                    if (!(limit > 0.0))
+                    {
+                        return super.calculate(data, i, j, limit, scratch);
+                    }
+                    double r = super.calculate(data, i, j, limit, scratch);
+                    if (r >= limit)
+                    {
+                        pearson.incrementAndGet();
+                    }
+                    return r;
+                }
+            };
+            same(counted, data, 20, pearson, "Pearson, missing = " + missing);
+            Tests.check(pearson.get() * 2 < pairs, "Pearson pruning fires, missing = " + missing);
+
+            // The EM bound only depends on allele frequencies so skips little
+            // on this data, where thresholds are low; only check it doesn't
+            // change the results
+            same(new EM(), data, 20, null, "EM, missing = " + missing);
+        }
+        Correlation.setPrune(true);
+    }
+
+    // Drops SNPs where every known genotype is the same.  EM gives NaN for
+    // those, which isn't ordered against other values.
+    private static byte[][] polymorphic(byte[][] data)
+    {
+        boolean[] keep = new boolean[data[0].length];
+        int kept = 0;
+        for (int j = 0; j < keep.length; j++)
+        {
+            int first = -1;
+            for (byte[] d: data)
+            {
+                if (d[j] >= 0)
+                {
+                    if (first < 0)
+                    {
+                        first = d[j];
+                    }
+                    else if (d[j] != first)
+                    {
+                        keep[j] = true;
+                    }
+                }
+            }
+            if (keep[j])
+            {
+                kept++;
+            }
+        }
+        byte[][] ret = new byte[data.length][kept];
+        for (int s = 0; s < data.length; s++)
+        {
+            int k = 0;
+            for (int j = 0; j < keep.length; j++)
+            {
+                if (keep[j])
+                {
+                    ret[s][k++] = data[s][j];
+                }
+            }
+        }
+        return ret;
+    }
+
+    // LD calculated out of core, a block at a time, is the same as with the
+    // data in memory, and so is the index rebuilt from a finished checkpoint
+    private static void mapped() throws Exception
+    {
+        byte[][] genotypes = Tests.genotypes(300, 600, 0.05, 4);
+        File file = Tests.temp("genotypes");
+        File checkpoint = Tests.temp("checkpoint");
+        MappedGenotypes.write(genotypes, file);
+        MappedGenotypes data = new MappedGenotypes(file);
+        Pearson pearson = new Pearson();
+        LDIndex expected = pearson.topn(PackedGenotypes.transposed(genotypes), 20);
+        // Small enough for several blocks of SNPs
+        Correlation.setBlockMemory(30000);
+        for (String run: new String[] {"new checkpoint", "finished checkpoint"})
+        {
+            LDIndex actual = pearson.topn(data, 20, checkpoint);
+            Tests.check(Arrays.equals(expected.getOffsets(), actual.getOffsets()), run + ": offsets");
+            Tests.check(Arrays.equals(expected.getIds(), actual.getIds()), run + ": ids");
+            Tests.check(Arrays.equals(expected.getScores(), actual.getScores()), run + ": scores");
+        }
+        Correlation.setBlockMemory(64L * 1024 * 1024);
+    }
+
+    // Checks the top n is the same with and without pruning, including the
+    // order of ties.  Leaves count, if given, holding the calculations from
+    // the pruned run.
+    private static void same(Correlation c, PackedGenotypes data, int n,
+            AtomicLong count, String what)
+    {
+        Correlation.setPrune(false);
+        LDIndex expected = c.topn(data, n);
+        Correlation.setPrune(true);
+        if (count != null)
+        {
+            count.set(0);
+        }
+        LDIndex actual = c.topn(data, n);
+        Tests.check(Arrays.equals(expected.getOffsets(), actual.getOffsets()), what + ": offsets");
+        Tests.check(Arrays.equals(expected.getIds(), actual.getIds()), what + ": ids");
+        Tests.check(Arrays.equals(expected.getScores(), actual.getScores()), what + ": scores");
+    }
+}
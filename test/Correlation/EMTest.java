@@ -0,0 +1,276 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Correlation;
+
+import Utils.PackedGenotypes;
+import Utils.Tests;
+import java.util.Random;
+
+/**
+ * Tests for EM
+ * @author Daniel Money
+ */
+public class EMTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        fixed();
+        random();
+        System.out.println("EMTest passed");
+    }
+
+    // Tables picked to cover strong and no LD, rare alleles, empty cells,
+    // only double heterozygotes and missing data.  Each is a 3 x 3 table of
+    // counts of samples known at both SNPs followed by the counts of each
+    // genotype at SNP 1 where SNP 2 is missing and the same for SNP 2.
+    private static final int[][] TABLES = {
+        {50, 0, 0, 0, 50, 0, 0, 0, 50, 0, 0, 0, 0, 0, 0},
+        {25, 25, 25, 25, 25, 25, 25, 25, 25, 0, 0, 0, 0, 0, 0},
+        {80, 10, 0, 10, 5, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0},
+        {0, 0, 0, 0, 40, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        {10, 0, 0, 0, 40, 0, 0, 0, 10, 0, 0, 0, 0, 0, 0},
+        {0, 0, 10, 0, 40, 0, 10, 0, 0, 0, 0, 0, 0, 0, 0},
+        {190, 5, 0, 4, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+        {30, 20, 5, 20, 30, 10, 5, 10, 20, 5, 3, 2, 4, 4, 1},
+        {50, 0, 0, 0, 50, 0, 0, 0, 50, 10, 10, 10, 0, 0, 0},
+        {80, 10, 0, 10, 5, 0, 0, 0, 1, 20, 0, 0, 0, 5, 0},
+        {0, 0, 0, 0, 40, 0, 0, 0, 0, 5, 5, 5, 5, 5, 5},
+        {190, 5, 0, 4, 1, 0, 0, 0, 0, 0, 2, 0, 30, 0, 0},
+    };
+
+    private static void fixed()
+    {
+        for (int t = 0; t < TABLES.length; t++)
+        {
+            check(TABLES[t], "table " + t);
+        }
+    }
+
+    // Random tables, some with missing data, from a fixed seed
+    private static void random()
+    {
+        Random r = new Random(5);
+        for (int t = 0; t < 2000; t++)
+        {
+            int samples = 20 + r.nextInt(500);
+            double[] w = new double[9];
+            double sum = 0.0;
+            for (int c = 0; c < 9; c++)
+            {
+                // Cubing leaves many cells empty or nearly so
+                w[c] = Math.pow(r.nextDouble(), 3.0);
+                sum += w[c];
+            }
+            int[] table = new int[15];
+            for (int s = 0; s < samples; s++)
+            {
+                double x = r.nextDouble() * sum;
+                int c = 0;
+                while ((c < 8) && (x >= w[c]))
+                {
+                    x -= w[c];
+                    c++;
+                }
+                if (r.nextBoolean() && (r.nextDouble() < 0.1))
+                {
+                    // Missing at one SNP or the other
+                    table[r.nextBoolean() ? 9 + c / 3 : 12 + c % 3]++;
+                }
+                else
+                {
+                    table[c]++;
+                }
+            }
+            check(table, "random table " + t);
+        }
+    }
+
+    // The old golden section search stops when its bracket is narrower than
+    // 1e-4 and returns the middle, so when it finds the maximum its pAB is
+    // within 1e-4 of it.  sqrt(r^2) is |pAB - pA pB| / sqrt(pA (1 - pA)
+    // pB (1 - pB)) so is then within 1e-4 / sqrt(pA (1 - pA) pB (1 - pB)).
+    // The search doesn't always find the maximum, in which case the new
+    // result must be more likely.  Either way the result must be at least as
+    // likely as any pAB on a fine grid.  Packed and unpacked data should
+    // give exactly the same result.
+    private static void check(int[] table, String what)
+    {
+        byte[][] d = genotypes(table);
+        double expected = baseline(d[0], d[1]);
+        EM em = new EM();
+        double actual = em.calculate(d[0], d[1]);
+
+        double pA = frequency(d[0]);
+        double pB = frequency(d[1]);
+        int[][] counts = counts(d[0], d[1]);
+        double tolerance = 1e-4 / Math.sqrt(pA * (1.0 - pA) * pB * (1.0 - pB));
+        if (Double.isNaN(expected))
+        {
+            Tests.check(Double.isNaN(actual), what + ": NaN");
+        }
+        else
+        {
+            double la = likelihood(actual, counts, pA, pB);
+            Tests.check((Math.abs(Math.sqrt(actual) - Math.sqrt(expected)) <= tolerance) ||
+                    (la > likelihood(expected, counts, pA, pB)),
+                    what + ": " + actual + " vs " + expected);
+            double a = pA * pB + Math.max(-pA * pB, -(1.0-pA) * (1.0-pB));
+            double b = pA * pB + Math.min(pA * (1.0-pB), pB * (1.0-pA));
+            for (int i = 1; i < 10000; i++)
+            {
+                double grid = l(a + (b - a) * i / 10000.0, counts, pA, pB);
+                Tests.check(la >= grid - 1e-9 * Math.abs(grid), what + ": maximum");
+            }
+        }
+
+        byte[][] samples = new byte[d[0].length][2];
+        for (int s = 0; s < samples.length; s++)
+        {
+            samples[s][0] = d[0][s];
+            samples[s][1] = d[1][s];
+        }
+        double packed = em.calculate(PackedGenotypes.transposed(samples), 0, 1);
+        Tests.check(Double.compare(actual, packed) == 0, what + ": packed");
+    }
+
+    private static byte[][] genotypes(int[] table)
+    {
+        int samples = 0;
+        for (int c: table)
+        {
+            samples += c;
+        }
+        byte[][] d = new byte[2][samples];
+        int s = 0;
+        for (int c = 0; c < 15; c++)
+        {
+            for (int i = 0; i < table[c]; i++)
+            {
+                if (c < 9)
+                {
+                    d[0][s] = (byte) (c / 3);
+                    d[1][s] = (byte) (c % 3);
+                }
+                else if (c < 12)
+                {
+                    d[0][s] = (byte) (c - 9);
+                    d[1][s] = -1;
+                }
+                else
+                {
+                    d[0][s] = -1;
+                    d[1][s] = (byte) (c - 12);
+                }
+                s++;
+            }
+        }
+        return d;
+    }
+
+    // The highest likelihood of the pAB that give r squared
+    private static double likelihood(double r2, int[][] counts, double pA, double pB)
+    {
+        double d = Math.sqrt(r2 * pA * (1.0 - pA) * pB * (1.0 - pB));
+        return Math.max(l(pA * pB + d, counts, pA, pB), l(pA * pB - d, counts, pA, pB));
+    }
+
+    private static int[][] counts(byte[] d1, byte[] d2)
+    {
+        int[][] counts = new int[3][3];
+        for (int i = 0; i < d1.length; i++)
+        {
+            if ((d1[i] >= 0) && (d2[i] >= 0))
+            {
+                counts[d1[i]][d2[i]] ++;
+            }
+        }
+        return counts;
+    }
+
+    private static double frequency(byte[] d)
+    {
+        int count = 0;
+        for (byte g: d)
+        {
+            if (g >= 0)
+            {
+                count += g;
+            }
+        }
+        return 1.0 - 0.5 * (double) count / (double) d.length;
+    }
+
+    // EM as it was calculated before solving for the turning points
+    private static double baseline(byte[] d1, byte[] d2)
+    {
+        int[][] counts = counts(d1, d2);
+        double pA = frequency(d1);
+        double pB = frequency(d2);
+
+        double a = pA * pB + Math.max(-pA * pB, -(1.0-pA) * (1.0-pB));
+        double b = pA * pB + Math.min(pA * (1.0-pB), pB * (1.0-pA));
+        double c = a + R*(b-a); double cl = l(c,counts,pA,pB);
+        do
+        {
+            double d = c + R*(b-c); double dl = l(d,counts,pA,pB);
+            if (cl >= dl)
+            {
+                b = a;
+                a = d;
+            }
+            else
+            {
+                a = c;
+                c = d;
+                cl = dl;
+            }
+        }
+        while (Math.abs(b - a) > 1e-4);
+        double pAB = (b+a) / 2.0;
+
+        double D = pAB - pA * pB;
+        return (D * D) / (pA * (1.0 - pA) * pB * (1.0 - pB));
+    }
+
+    // The log likelihood, as before except that empty cells add nothing
+    // rather than NaN at the ends of the range, where EM can now put pAB
+    private static double l(double pAB, int[][] counts, double pA, double pB)
+    {
+        double pAb = pA - pAB;
+        double paB = pB - pAB;
+        double pab = 1 - pA - pB + pAB;
+
+        return  term(2 * counts[0][0] + counts[0][1] + counts[1][0], pAB) +
+                term(2 * counts[0][2] + counts[0][1] + counts[1][2], pAb) +
+                term(2 * counts[2][0] + counts[1][0] + counts[2][1], paB) +
+                term(2 * counts[2][2] + counts[1][2] + counts[2][1], pab) +
+                term(counts[1][1], pAB * pab + pAb * paB);
+    }
+
+    private static double term(int c, double p)
+    {
+        return (c == 0) ? 0.0 : c * Math.log(Math.max(p, 0.0));
+    }
+
+    private static final double R = (3.0 - Math.sqrt(5.0)) / 2.0;
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Correlation;
+
+import Methods.KnniLD;
+import Utils.PackedGenotypes;
+import Utils.Tests;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Tests for LDIndex
+ * @author Daniel Money
+ */
+public class LDIndexTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Correlation.setSilent(true);
+        KnniLD.setSilent(true);
+        binary();
+        System.out.println("LDIndexTest passed");
+    }
+
+    // An index written in binary and read back has the same neighbours,
+    // the same scores up to quantization and imputes the same
+    private static void binary() throws Exception
+    {
+        byte[][] data = Tests.genotypes(100, 300, 0.05, 6);
+        LDIndex scored = new Pearson().topn(PackedGenotypes.transposed(data), 20);
+        LDIndex read = roundTrip(scored, "scores");
+        float[] expected = scored.getScores();
+        float[] actual = read.getScores();
+        for (int i = 0; i < expected.length; i++)
+        {
+            Tests.check(Math.abs(expected[i] - actual[i]) <= 0.5f / 65534.0f, "score " + i);
+        }
+        KnniLD.setModeFallback(false);
+        Tests.same(new KnniLD(scored, 5, 10).compute(data), new KnniLD(read, 5, 10).compute(data),
+                "mapped index imputes the same");
+
+        // Uneven numbers of neighbours, including none, and no scores
+        int[][] neighbours = {{3, 1, 2}, {}, {0}, {2, 0, 1, 299}};
+        LDIndex unscored = roundTrip(new LDIndex(neighbours), "no scores");
+        for (float v: unscored.getScores())
+        {
+            Tests.check(Float.isNaN(v), "no scores read as NaN");
+        }
+        for (int snp = 0; snp < neighbours.length; snp++)
+        {
+            int[] into = new int[neighbours[snp].length];
+            unscored.neighbours(snp, into.length, into);
+            Tests.check(Arrays.equals(neighbours[snp], into), "neighbours of " + snp);
+        }
+        Tests.check(unscored.maxCount() == 4, "max count");
+
+        File text = Tests.temp("ldtext");
+        try (PrintWriter out = new PrintWriter(text))
+        {
+            out.println("0\t1\t2");
+        }
+        Tests.check(!LDIndex.isBinary(text), "text file isn't binary");
+    }
+
+    // Writes an index, reads it back and checks the neighbours match, and
+    // that writing the read index gives the same file
+    private static LDIndex roundTrip(LDIndex index, String what) throws Exception
+    {
+        File f = Tests.temp("ld");
+        index.write(f);
+        Tests.check(LDIndex.isBinary(f), what + ": binary");
+        LDIndex read = LDIndex.read(f);
+        Tests.check(read.size() == index.size(), what + ": size");
+        Tests.check(read.total() == index.total(), what + ": total");
+        Tests.check(Arrays.equals(index.getOffsets(), read.getOffsets()), what + ": offsets");
+        Tests.check(Arrays.equals(index.getIds(), read.getIds()), what + ": ids");
+        for (int snp = 0; snp < index.size(); snp++)
+        {
+            Tests.check(index.getList(snp).equals(read.getList(snp)), what + ": list " + snp);
+        }
+
+        File again = Tests.temp("ld");
+        read.write(again);
+        Tests.check(Arrays.equals(Files.readAllBytes(f.toPath()), Files.readAllBytes(again.toPath())),
+                what + ": rewritten file is the same");
+        return read;
+    }
+}
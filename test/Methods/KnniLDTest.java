@@ -0,0 +1,133 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Methods;
+
+import Correlation.Correlation;
+import Correlation.LDIndex;
+import Correlation.Pearson;
+import Mask.Mask;
+import Utils.PackedGenotypes;
+import Utils.Tests;
+import java.util.Arrays;
+
+/**
+ * Tests for LD-kNNi
+ * @author Daniel Money
+ */
+public class KnniLDTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Correlation.setSilent(true);
+        KnniLD.setSilent(true);
+        pruning();
+        unimputable();
+        accuracies();
+        sweep();
+        System.out.println("KnniLDTest passed");
+    }
+
+    // Abandoning distances that can't be among the k closest happens for
+    // values of l that fit in a single word and doesn't change the result
+    private static void pruning() throws Exception
+    {
+        byte[][] data = Tests.genotypes(200, 400, 0.05, 1);
+        LDIndex ld = new Pearson().topn(PackedGenotypes.transposed(data), 100);
+        Mask mask = Tests.mask(data, 0.02, 2);
+        for (int l: new int[] {5, 20, 64, 100})
+        {
+            KnniLD.setPrune(false);
+            KnniLD exhaustive = new KnniLD(ld, 5, l);
+            byte[][] expected = exhaustive.compute(data);
+            double[] expectedAccuracy = exhaustive.fastAccuracies(data, mask);
+            Tests.check(exhaustive.getPruned() == 0, "nothing pruned when not pruning, l = " + l);
+
+            KnniLD.setPrune(true);
+            KnniLD pruned = new KnniLD(ld, 5, l);
+            byte[][] actual = pruned.compute(data);
+            // Most distances can be abandoned on this data, even for l up to
+            // 64 where every neighbour is in the first word
+            Tests.check(pruned.getPruned() * 4 > pruned.getDistances(),
+                    "pruning fires when imputing, l = " + l);
+            Tests.same(expected, actual, "pruning doesn't change imputation, l = " + l);
+            double[] accuracy = pruned.fastAccuracies(data, mask);
+            Tests.check(pruned.getPruned() > 0, "pruning fires for accuracy, l = " + l);
+            Tests.check(Arrays.equals(expectedAccuracy, accuracy),
+                    "pruning doesn't change accuracy, l = " + l);
+        }
+        KnniLD.setPrune(false);
+    }
+
+    // The accuracy for every k from one pass is the accuracy found for each
+    // k on its own
+    private static void accuracies() throws Exception
+    {
+        byte[][] data = Tests.genotypes(120, 300, 0.05, 12);
+        LDIndex ld = new Pearson().topn(PackedGenotypes.transposed(data), 40);
+        Mask mask = Tests.mask(data, 0.03, 13);
+        int kmax = 12;
+        for (int l: new int[] {5, 20, 40})
+        {
+            double[] accuracy = new KnniLD(ld, kmax, l).fastAccuracies(data, mask);
+            for (int k = 1; k <= kmax; k++)
+            {
+                Tests.check(accuracy[k] == new KnniLD(ld, k, l).fastAccuracy(data, mask),
+                        "accuracy for k = " + k + ", l = " + l);
+            }
+        }
+    }
+
+    // Accuracies for several values of l from one distance sweep are those
+    // found for each l on its own, whatever order the values are given in
+    private static void sweep() throws Exception
+    {
+        byte[][] data = Tests.genotypes(120, 300, 0.05, 14);
+        LDIndex ld = new Pearson().topn(PackedGenotypes.transposed(data), 100);
+        Mask mask = Tests.mask(data, 0.03, 15);
+        int[] ls = {65, 5, 33, 100, 17, 64};
+        KnniLD.setPrune(true);
+        double[][] accuracy = new KnniLD(ld, 10, 1).fastAccuracies(data, mask, ls);
+        KnniLD.setPrune(false);
+        for (int j = 0; j < ls.length; j++)
+        {
+            Tests.check(Arrays.equals(accuracy[j], new KnniLD(ld, 10, ls[j]).fastAccuracies(data, mask)),
+                    "accuracies for l = " + ls[j]);
+        }
+    }
+
+    // Genotypes at a SNP with fewer than k known genotypes are counted as
+    // failures and set to 0, or imputed with the mode if asked
+    private static void unimputable() throws Exception
+    {
+        byte[][] data = KnniTest.unimputable(Tests.genotypes(50, 100, 0.05, 5), 7, 3);
+        LDIndex ld = new Pearson().topn(PackedGenotypes.transposed(data), 20);
+        KnniLD knni = new KnniLD(ld, 5, 10);
+        byte[][] imputed = knni.compute(data);
+        KnniTest.check(data, imputed, knni.getFailures(), 7, 0);
+
+        KnniLD.setModeFallback(true);
+        imputed = knni.compute(data);
+        KnniLD.setModeFallback(false);
+        KnniTest.check(data, imputed, knni.getFailures(), 7, 2);
+    }
+}
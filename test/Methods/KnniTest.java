@@ -0,0 +1,315 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Methods;
+
+import Mask.Mask;
+import Utils.MissingIndex;
+import Utils.SampleWeights;
+import Utils.Tests;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Tests for kNNi
+ * @author Daniel Money
+ */
+public class KnniTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Knni.setSilent(true);
+        unimputable();
+        nearest();
+        accuracies();
+        baseline();
+        deterministic();
+        System.out.println("KnniTest passed");
+    }
+
+    // Genotypes at a SNP with fewer than k known genotypes are counted as
+    // failures and set to 0, or imputed with the mode if asked
+    private static void unimputable() throws Exception
+    {
+        byte[][] data = unimputable(Tests.genotypes(50, 100, 0.05, 5), 7, 3);
+        Knni knni = new Knni(5);
+        byte[][] imputed = knni.compute(data);
+        check(data, imputed, knni.getFailures(), 7, 0);
+
+        Knni.setModeFallback(true);
+        imputed = knni.compute(data);
+        Knni.setModeFallback(false);
+        check(data, imputed, knni.getFailures(), 7, 2);
+    }
+
+    // Keeping only the nearest samples imputes the same as keeping every
+    // weight, whether or not the nearest samples run out
+    private static void nearest() throws Exception
+    {
+        byte[][] data = Tests.genotypes(120, 300, 0.1, 7);
+        MissingIndex missing = new MissingIndex(data);
+        SampleWeights weights = Knni.weight(data);
+        NearestSamples.setSilent(true);
+        for (int top: new int[] {3, 10, 119})
+        {
+            NearestSamples near = new NearestSamples(data, top);
+            Tests.check(near.top() == top, "top kept");
+            Tests.same(new Knni(5).compute(data, weights, missing),
+                    new Knni(5).compute(data, near, missing), "nearest samples impute the same, top = " + top);
+        }
+    }
+
+    // The accuracy for every k from one pass, with each sample's donors
+    // sorted once, is the accuracy found by sorting the donors afresh for
+    // every masked genotype and every k, as fastAccuracy originally did
+    private static void accuracies() throws Exception
+    {
+        byte[][] data = Tests.genotypes(80, 200, 0.05, 8);
+        Mask mask = Tests.mask(data, 0.05, 9);
+        SampleWeights weights = Knni.weight(data);
+        int kmax = 15;
+        double[] accuracy = new Knni(kmax).fastAccuracies(data, mask, weights);
+        double[] again = new Knni(kmax).fastAccuracies(data, mask, weights);
+        Tests.check(Arrays.equals(accuracy, again), "accuracies are the same every run");
+        double[] near = new Knni(kmax).fastAccuracies(data, mask, new NearestSamples(data, 10));
+        Tests.check(Arrays.equals(accuracy, near), "nearest samples give the same accuracies");
+        for (int k = 1; k <= kmax; k++)
+        {
+            Tests.check(accuracy[k] == reference(data, mask, weights, k), "accuracy for k = " + k);
+            Tests.check(accuracy[k] == new Knni(k).fastAccuracy(data, mask, weights),
+                    "accuracy for k = " + k + " on its own");
+        }
+    }
+
+    // Accuracy worked out as fastAccuracy originally did: for each masked
+    // genotype every sample is sorted by weight, ties kept in sample order,
+    // and the first k with a known genotype vote
+    private static double reference(byte[][] data, Mask mask, SampleWeights weights, int k)
+    {
+        boolean[][] m = mask.getArray();
+        final double[] row = new double[data.length];
+        int correct = 0;
+        int total = 0;
+        for (int i = 0; i < m.length; i++)
+        {
+            for (int j = 0; j < m[i].length; j++)
+            {
+                if (m[i][j])
+                {
+                    weights.row(i, row);
+                    Integer[] order = new Integer[data.length];
+                    for (int x = 0; x < order.length; x++)
+                    {
+                        order[x] = x;
+                    }
+                    Arrays.sort(order, new Comparator<Integer>()
+                    {
+                        @Override
+                        public int compare(Integer a, Integer b)
+                        {
+                            return Double.compare(row[b], row[a]);
+                        }
+                    });
+                    double[] w = new double[3];
+                    int f = 0;
+                    int imputed = -1;
+                    for (int x = 0; (x < order.length) && (f < k); x++)
+                    {
+                        byte g = data[order[x]][j];
+                        if (g >= 0)
+                        {
+                            if (row[order[x]] == Double.POSITIVE_INFINITY)
+                            {
+                                imputed = g;
+                                break;
+                            }
+                            w[g] += row[order[x]];
+                            f++;
+                        }
+                    }
+                    if ((imputed < 0) && (f == k))
+                    {
+                        imputed = Knni.vote(w);
+                    }
+                    if (imputed == data[i][j])
+                    {
+                        correct++;
+                    }
+                    total++;
+                }
+            }
+        }
+        return (double) correct / (double) total;
+    }
+
+    // Imputation matches kNNi as originally written: weights calculated
+    // genotype by genotype into a full matrix of doubles, every sample sorted
+    // by weight for every sample, ties kept in sample order.  Weights on this
+    // data often nearly tie, which rounding them to floats would reorder.
+    private static void baseline() throws Exception
+    {
+        byte[][] data = Tests.genotypes(150, 400, 0.1, 10);
+        int k = 5;
+        final double[][] d = new double[data.length][data.length];
+        for (int i = 0; i < data.length; i++)
+        {
+            for (int j = i + 1; j < data.length; j++)
+            {
+                d[i][j] = weight(data[i], data[j]);
+                d[j][i] = d[i][j];
+            }
+        }
+        SampleWeights weights = Knni.weight(data);
+        for (int i = 0; i < data.length; i++)
+        {
+            for (int j = 0; j < data.length; j++)
+            {
+                Tests.check(weights.get(i, j) == d[i][j], "weight " + i + ", " + j);
+            }
+        }
+
+        byte[][] expected = new byte[data.length][];
+        for (int s = 0; s < data.length; s++)
+        {
+            final double[] row = d[s];
+            Integer[] order = new Integer[data.length];
+            for (int x = 0; x < order.length; x++)
+            {
+                order[x] = x;
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer a, Integer b)
+                {
+                    return Double.compare(row[b], row[a]);
+                }
+            });
+            expected[s] = data[s].clone();
+            for (int p = 0; p < data[s].length; p++)
+            {
+                if (data[s][p] < 0)
+                {
+                    expected[s][p] = impute(data, p, order, row, k);
+                }
+            }
+        }
+
+        MissingIndex missing = new MissingIndex(data);
+        Tests.same(expected, new Knni(k).compute(data, weights, missing), "matches original kNNi");
+        Tests.same(expected, new Knni(k).compute(data, new NearestSamples(data, 20), missing),
+                "nearest samples match original kNNi");
+    }
+
+    // The weight between two samples as originally calculated
+    private static double weight(byte[] v1, byte[] v2)
+    {
+        int d = 0;
+        int c = 0;
+        for (int i = 0; i < v1.length; i++)
+        {
+            if ((v1[i] != -1) && (v2[i] != -1))
+            {
+                c++;
+                d += Math.abs(v1[i] - v2[i]);
+            }
+        }
+        return 1.0 / ((double) d * (double) v1.length / (double) c);
+    }
+
+    // A genotype imputed as originally, 0 if there are not k known genotypes
+    private static byte impute(byte[][] data, int p, Integer[] order, double[] row, int k)
+    {
+        double[] w = new double[3];
+        int f = 0;
+        for (int x = 0; (x < order.length) && (f < k); x++)
+        {
+            byte g = data[order[x]][p];
+            if (g >= 0)
+            {
+                if (row[order[x]] == Double.POSITIVE_INFINITY)
+                {
+                    return g;
+                }
+                w[g] += row[order[x]];
+                f++;
+            }
+        }
+        return (f < k) ? 0 : Knni.vote(w);
+    }
+
+    // Samples imputed in parallel, split into ranges however the pool
+    // likes, give the same genotypes and failure counts every run.  That
+    // they match imputing one sample at a time is checked by baseline.
+    private static void deterministic() throws Exception
+    {
+        byte[][] data = unimputable(Tests.genotypes(200, 300, 0.1, 16), 11, 4);
+        SampleWeights weights = Knni.weight(data);
+        MissingIndex missing = new MissingIndex(data);
+        Knni.setModeFallback(true);
+        Knni knni = new Knni(5);
+        byte[][] expected = knni.compute(data, weights, missing);
+        int[] failures = knni.getFailures().clone();
+        Tests.check(failures[11] == data.length - 4, "failures counted once each");
+        for (int run = 0; run < 3; run++)
+        {
+            Tests.same(expected, knni.compute(data, weights, missing), "same genotypes, run " + run);
+            Tests.check(Arrays.equals(failures, knni.getFailures()), "same failures, run " + run);
+        }
+        Knni.setModeFallback(false);
+    }
+
+    // Leaves a SNP with only a few known genotypes, all of them 2
+    static byte[][] unimputable(byte[][] data, int p, int known)
+    {
+        for (int s = 0; s < data.length; s++)
+        {
+            data[s][p] = (byte) ((s < known) ? 2 : -1);
+        }
+        return data;
+    }
+
+    // Checks the genotypes at a SNP that couldn't be imputed, and that
+    // everything else was
+    static void check(byte[][] data, byte[][] imputed, int[] failures, int p, int expected)
+    {
+        Tests.check(failures[p] == data.length - 3, "failures counted");
+        for (int s = 0; s < data.length; s++)
+        {
+            for (int j = 0; j < data[s].length; j++)
+            {
+                if (data[s][j] >= 0)
+                {
+                    Tests.check(imputed[s][j] == data[s][j], "known genotypes kept");
+                }
+                else if (j == p)
+                {
+                    Tests.check(imputed[s][j] == expected, "unimputable genotype is " + expected);
+                }
+                else
+                {
+                    Tests.check(imputed[s][j] >= 0, "other genotypes imputed");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import Correlation.CorrelationTest;
+import Correlation.EMTest;
+import Correlation.LDIndexTest;
+import Methods.KnniLDTest;
+import Methods.KnniTest;
+
+/**
+ * Runs every test.  Compile the test directory together with the source
+ * directory and run this class; it exits with an error on the first test
+ * that fails.
+ * @author Daniel Money
+ */
+public class RunTests
+{
+    /**
+     * Main method
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        CorrelationTest.main(args);
+        EMTest.main(args);
+        LDIndexTest.main(args);
+        KnniLDTest.main(args);
+        KnniTest.main(args);
+        SampleWeightsTest.main(args);
+        TopHeapTest.main(args);
+        TopHeapFileTest.main(args);
+        System.out.println("All tests passed");
+    }
+}
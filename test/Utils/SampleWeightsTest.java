@@ -0,0 +1,94 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import Methods.Knni;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for SampleWeights
+ * @author Daniel Money
+ */
+public class SampleWeightsTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        Knni.setSilent(true);
+        mapped();
+        System.out.println("SampleWeightsTest passed");
+    }
+
+    // Weights calculated into a mapped file read back exactly as they were
+    // calculated in memory, and incomplete or old files aren't read
+    private static void mapped() throws Exception
+    {
+        byte[][] data = Tests.genotypes(60, 200, 0.05, 11);
+        SampleWeights memory = Knni.weight(data);
+        File f = Tests.temp("weights");
+        SampleWeights created = SampleWeights.create(f, data.length);
+        Knni.weight(data, created);
+        Tests.check(!readable(f), "incomplete file isn't read");
+        created.complete();
+
+        SampleWeights read = SampleWeights.read(f);
+        Tests.check(read.size() == data.length, "size");
+        double[] row = new double[data.length];
+        for (int i = 0; i < data.length; i++)
+        {
+            read.row(i, row);
+            for (int j = 0; j < data.length; j++)
+            {
+                Tests.check(read.get(i, j) == memory.get(i, j), "weight " + i + ", " + j);
+                Tests.check(row[j] == memory.get(i, j), "row " + i + ", " + j);
+            }
+        }
+
+        // A file of float weights, as written before weights were doubles
+        File old = Tests.temp("weights");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(old)))
+        {
+            out.writeInt(0x4c495357);
+            out.writeInt(data.length);
+            out.write(new byte[data.length * (data.length - 1) / 2 * 4]);
+        }
+        Tests.check(!readable(old), "float weight file isn't read");
+        f.delete();
+        old.delete();
+    }
+
+    private static boolean readable(File f)
+    {
+        try
+        {
+            SampleWeights.read(f);
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+}
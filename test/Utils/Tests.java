@@ -0,0 +1,153 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import Mask.Mask;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Helpers shared by the tests.  The tests have no dependencies beyond the
+ * JDK: each test class has a main method that throws an AssertionError on
+ * the first failure, and RunTests runs all of them.
+ * @author Daniel Money
+ */
+public class Tests
+{
+    /**
+     * Fails the test if a condition doesn't hold
+     * @param ok The condition
+     * @param what Description of what was being tested
+     */
+    public static void check(boolean ok, String what)
+    {
+        if (!ok)
+        {
+            throw new AssertionError(what);
+        }
+    }
+
+    /**
+     * Fails the test if two data sets differ
+     * @param expected The expected data
+     * @param actual The actual data
+     * @param what Description of what was being tested
+     */
+    public static void same(byte[][] expected, byte[][] actual, String what)
+    {
+        check(Arrays.deepEquals(expected, actual), what);
+    }
+
+    /**
+     * Creates a synthetic data set.  Samples are made of two founder
+     * haplotypes, switching founder every hundred or so SNPs, so there is
+     * both similarity between samples and LD between SNPs.
+     * @param samples The number of samples
+     * @param snps The number of SNPs
+     * @param missing The proportion of genotypes that are missing
+     * @param seed The random seed
+     * @return The genotypes, indexed by sample and then SNP.  Missing data
+     * is coded as -1.
+     */
+    public static byte[][] genotypes(int samples, int snps, double missing, long seed)
+    {
+        Random r = new Random(seed);
+        int founders = 8;
+        boolean[][] hap = new boolean[founders][snps];
+        for (int f = 0; f < founders; f++)
+        {
+            for (int j = 0; j < snps; j++)
+            {
+                hap[f][j] = r.nextDouble() < 0.1 + 0.8 * ((j * 7) % 10) / 10.0;
+            }
+        }
+
+        byte[][] data = new byte[samples][snps];
+        for (int s = 0; s < samples; s++)
+        {
+            int h1 = r.nextInt(founders);
+            int h2 = r.nextInt(founders);
+            for (int j = 0; j < snps; j++)
+            {
+                if (r.nextDouble() < 0.01)
+                {
+                    h1 = r.nextInt(founders);
+                }
+                if (r.nextDouble() < 0.01)
+                {
+                    h2 = r.nextInt(founders);
+                }
+                if (r.nextDouble() < missing)
+                {
+                    data[s][j] = -1;
+                }
+                else
+                {
+                    data[s][j] = (byte) ((hap[h1][j] ? 1 : 0) + (hap[h2][j] ? 1 : 0));
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Creates a mask of some of the known genotypes of a data set
+     * @param data The genotypes
+     * @param proportion The proportion of known genotypes to mask
+     * @param seed The random seed
+     * @return The mask
+     * @throws IOException If there is a problem with the temporary file the
+     * mask is written to
+     */
+    public static Mask mask(byte[][] data, double proportion, long seed) throws IOException
+    {
+        Random r = new Random(seed);
+        File f = temp("mask");
+        try (PrintWriter out = new PrintWriter(f))
+        {
+            for (byte[] d: data)
+            {
+                StringBuilder line = new StringBuilder();
+                for (byte g: d)
+                {
+                    line.append(((g >= 0) && (r.nextDouble() < proportion)) ? '1' : '0');
+                }
+                out.println(line);
+            }
+        }
+        Mask mask = new Mask(f);
+        f.delete();
+        return mask;
+    }
+
+    /**
+     * Creates a temporary file that is deleted on exit
+     * @param name Prefix for the file name
+     * @return The file
+     * @throws IOException If the file can't be created
+     */
+    public static File temp(String name) throws IOException
+    {
+        File f = File.createTempFile("linkimpute-" + name, ".tmp");
+        f.deleteOnExit();
+        return f;
+    }
+}
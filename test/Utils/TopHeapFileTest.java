@@ -0,0 +1,84 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for TopHeapFile
+ * @author Daniel Money
+ */
+public class TopHeapFileTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        checkpoint();
+        System.out.println("TopHeapFileTest passed");
+    }
+
+    // Heaps and the completed count survive reopening a file with the same
+    // parameters, and a file with a different tag starts again from empty
+    private static void checkpoint() throws Exception
+    {
+        File f = Tests.temp("heaps");
+        TopHeap[] written = new TopHeap[3];
+        for (int i = 0; i < written.length; i++)
+        {
+            written[i] = new TopHeap(4);
+            for (int j = 0; j < i + 2; j++)
+            {
+                written[i].add(10 * i + j, (float) (j % 2));
+            }
+        }
+        try (TopHeapFile heaps = new TopHeapFile(f, 5, 4, 3, 42))
+        {
+            Tests.check(heaps.completed() == 0, "new file has no passes");
+            heaps.write(0, 1, written);
+            heaps.setCompleted(1);
+        }
+
+        try (TopHeapFile heaps = new TopHeapFile(f, 5, 4, 3, 42))
+        {
+            Tests.check(heaps.completed() == 1, "reopened file keeps its passes");
+            TopHeap[] read = heaps.read(0, 1);
+            int[] sizes = heaps.sizes(0, 1);
+            Tests.check(read.length == 3, "block size");
+            for (int i = 0; i < read.length; i++)
+            {
+                Tests.check(sizes[i] == written[i].size(), "sizes " + i);
+                Tests.check(Arrays.equals(written[i].getIds(), read[i].getIds()), "ids " + i);
+                Tests.check(Arrays.equals(written[i].getScores(), read[i].getScores()), "scores " + i);
+            }
+            Tests.check(heaps.sizes(1, 0).length == 2, "last block is partial");
+            Tests.check(heaps.sizes(1, 0)[0] == 0, "unwritten heaps are empty");
+        }
+
+        try (TopHeapFile heaps = new TopHeapFile(f, 5, 4, 3, 43))
+        {
+            Tests.check(heaps.completed() == 0, "different tag starts again");
+            Tests.check(heaps.sizes(0, 1)[0] == 0, "different tag has empty heaps");
+        }
+        f.delete();
+    }
+}
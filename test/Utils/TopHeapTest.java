@@ -0,0 +1,128 @@
+/*
+ * This file is part of LinkImpute.
+ *
+ * LinkImpute is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LinkImpute is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LinkImpute.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package Utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Tests for TopHeap and TopHeapDouble
+ * @author Daniel Money
+ */
+public class TopHeapTest
+{
+    /**
+     * Runs the tests
+     * @param args Not used
+     * @throws Exception If a test fails
+     */
+    public static void main(String[] args) throws Exception
+    {
+        ties();
+        System.out.println("TopHeapTest passed");
+    }
+
+    // Whatever order entries are added in, and however they are split
+    // between heaps that are merged, the heaps keep the highest scores with
+    // ties going to the lowest id, ordered best first
+    private static void ties()
+    {
+        Random r = new Random(12);
+        int n = 200;
+        int top = 25;
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            // Few distinct scores so there are many ties, plus pairs of
+            // doubles that round to the same float
+            scores[i] = r.nextInt(8) + ((i % 3 == 0) ? 1e-12 : 0.0);
+        }
+        int[] expectedDouble = best(scores, top, false);
+        int[] expectedFloat = best(scores, top, true);
+
+        for (int run = 0; run < 5; run++)
+        {
+            int[] order = shuffle(n, r);
+            TopHeap a = new TopHeap(top);
+            TopHeap b = new TopHeap(top);
+            TopHeapDouble c = new TopHeapDouble(top);
+            TopHeapDouble d = new TopHeapDouble(top);
+            for (int x = 0; x < n; x++)
+            {
+                int i = order[x];
+                ((x % 2 == 0) ? a : b).add(i, (float) scores[i]);
+                ((x % 2 == 0) ? c : d).add(i, scores[i]);
+            }
+            a.addAll(b);
+            c.addAll(d);
+            Tests.check(Arrays.equals(expectedFloat, a.getIds()), "float ties, run " + run);
+            Tests.check(Arrays.equals(expectedDouble, c.getIds()), "double ties, run " + run);
+            double[] cs = c.getScores();
+            for (int x = 0; x < top; x++)
+            {
+                Tests.check(cs[x] == scores[expectedDouble[x]], "double scores, run " + run);
+            }
+        }
+    }
+
+    // The top ids found by sorting, best score first and lowest id first
+    // within a score
+    private static int[] best(final double[] scores, int top, final boolean round)
+    {
+        Integer[] ids = new Integer[scores.length];
+        for (int i = 0; i < ids.length; i++)
+        {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                double sa = round ? (float) scores[a] : scores[a];
+                double sb = round ? (float) scores[b] : scores[b];
+                int c = Double.compare(sb, sa);
+                return (c != 0) ? c : Integer.compare(a, b);
+            }
+        });
+        int[] best = new int[top];
+        for (int i = 0; i < top; i++)
+        {
+            best[i] = ids[i];
+        }
+        return best;
+    }
+
+    private static int[] shuffle(int n, Random r)
+    {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            order[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--)
+        {
+            int j = r.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+}